@@ -0,0 +1,169 @@
+package poker.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Random;
+
+import poker.DatabaseManager;
+import poker.SchemaMigrations;
+import poker.entities.Deck;
+import poker.entities.Estimate;
+
+/***
+ * Creates SQLite databases of a given size for the benchmarks: tasks, each
+ * with its own team of voters, a Fibonacci deck and stories, and every voter's
+ * vote in each past iteration of every story.
+ *
+ * The content depends on the size only, so runs on different commits measure
+ * the same data. A seeded file is kept under -Dpoker.benchmark.dir
+ * (target/benchmark-db by default) and reused by commits with the same schema
+ * version, its name includes {@link SchemaMigrations#latestVersion()}.
+ *
+ * Ids are assigned in order from 1: task t has the stories (t - 1) * stories
+ * + 1 to t * stories and the voters (t - 1) * voters + 1 to t * voters.
+ */
+public class DatabaseSeeder {
+	// Bump when the seeded content changes, so older files are not reused
+	private static final int	FORMAT	= 1;
+	private static final long	SEED	= 42;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 4) {
+			System.err.println("Usage: DatabaseSeeder <tasks> <stories per task> <voters per task> <iterations>");
+			System.exit(1);
+		}
+
+		File file = seed(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]));
+		System.out.println(file.getPath());
+	}
+
+	/***
+	 * @return A database of the given size, seeded now if it does not exist
+	 *         yet. It must not be written to, benchmarks work on a copy.
+	 */
+	public static synchronized File seed(int tasks, int stories, int voters, int iterations) throws IOException,
+			SQLException {
+		File dir = new File(System.getProperty("poker.benchmark.dir", "target/benchmark-db"));
+		File file = new File(dir, String.format("poker-v%d-schema%d-%dt-%ds-%dv-%di.db", FORMAT,
+				SchemaMigrations.latestVersion(), tasks, stories, voters, iterations));
+		if (file.exists()) {
+			return file;
+		}
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+
+		// Seeded under another name, so an interrupted run leaves no partial
+		// database behind
+		File partial = new File(dir, file.getName() + ".partial");
+		if (partial.exists() && !partial.delete()) {
+			throw new IOException("Could not delete " + partial);
+		}
+
+		// The schema is whatever the migrations of this commit create
+		new DatabaseManager(partial.getPath()).close();
+
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + partial.getPath());
+		try {
+			connection.setAutoCommit(false);
+			insert(connection, tasks, stories, voters, iterations);
+			connection.commit();
+		} finally {
+			connection.close();
+		}
+
+		if (!partial.renameTo(file)) {
+			throw new IOException("Could not rename " + partial + " to " + file);
+		}
+		return file;
+	}
+
+	private static void insert(Connection connection, int tasks, int stories, int voters, int iterations)
+			throws SQLException {
+		Random random = new Random(SEED);
+		List<Estimate> deck = Deck.FIBONACCI.toEstimates(0);
+
+		PreparedStatement task = connection.prepareStatement("insert into tasks (id, name, description) values (?,?,?)");
+		PreparedStatement user = connection.prepareStatement("insert into users (id, name) values (?,?)");
+		PreparedStatement team = connection.prepareStatement("insert into task_team (task_id, user_id) values (?,?)");
+		PreparedStatement card = connection.prepareStatement("insert into estimations "
+				+ "(id, task_id, complexity_symbol, unit, unit_value) values (?,?,?,?,?)");
+		PreparedStatement story = connection.prepareStatement("insert into stories "
+				+ "(id, task_id, name, description, iteration) values (?,?,?,?,?)");
+		PreparedStatement vote = connection.prepareStatement("insert into story_user_estimations "
+				+ "(story_id, user_id, estimation_id, story_iteration) values (?,?,?,?)");
+
+		try {
+			for (int t = 1; t <= tasks; t++) {
+				task.setInt(1, t);
+				task.setString(2, "Task " + t);
+				task.setString(3, "Seeded task " + t);
+				task.addBatch();
+
+				for (int v = 0; v < voters; v++) {
+					int user_id = (t - 1) * voters + v + 1;
+					user.setInt(1, user_id);
+					user.setString(2, "Voter " + user_id);
+					user.addBatch();
+
+					team.setInt(1, t);
+					team.setInt(2, user_id);
+					team.addBatch();
+				}
+
+				int firstCard = (t - 1) * deck.size() + 1;
+				for (int c = 0; c < deck.size(); c++) {
+					Estimate estimate = deck.get(c);
+					card.setInt(1, firstCard + c);
+					card.setInt(2, t);
+					card.setString(3, estimate.getComplexitySymbol());
+					card.setInt(4, estimate.getUnit().getCode());
+					card.setFloat(5, estimate.getUnitValue());
+					card.addBatch();
+				}
+
+				for (int s = 0; s < stories; s++) {
+					int story_id = (t - 1) * stories + s + 1;
+					story.setInt(1, story_id);
+					story.setInt(2, t);
+					story.setString(3, "Story " + story_id);
+					story.setString(4, "Seeded story " + story_id);
+					story.setInt(5, iterations);
+					story.addBatch();
+
+					for (int i = 0; i < iterations; i++) {
+						for (int v = 0; v < voters; v++) {
+							vote.setInt(1, story_id);
+							vote.setInt(2, (t - 1) * voters + v + 1);
+							vote.setInt(3, firstCard + random.nextInt(deck.size()));
+							vote.setInt(4, i);
+							vote.addBatch();
+						}
+					}
+				}
+
+				// One task at a time, so large databases are not held in memory
+				task.executeBatch();
+				user.executeBatch();
+				team.executeBatch();
+				card.executeBatch();
+				story.executeBatch();
+				vote.executeBatch();
+			}
+		} finally {
+			task.close();
+			user.close();
+			team.close();
+			card.close();
+			story.close();
+			vote.close();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package poker.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import poker.DatabaseManager;
+import poker.entities.Deck;
+import poker.entities.Story;
+import poker.entities.Task;
+import poker.entities.UserEstimate;
+
+/***
+ * The database operations behind every page and poll of a game, run against
+ * a copy of a database seeded by {@link DatabaseSeeder}. The size is set with
+ * JMH parameters, e.g. -p tasks=1000 -p stories=50.
+ *
+ * Rows are picked by a random generator with a fixed seed, so every run asks
+ * for the same rows in the same order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Dpoker.log.level=WARN")
+public class PersistenceBenchmark {
+	@Param("100")
+	public int				tasks;
+
+	@Param("20")
+	public int				stories;
+
+	@Param("8")
+	public int				voters;
+
+	@Param("3")
+	public int				iterations;
+
+	private File			copy;
+	private DatabaseManager	dm;
+	private Random			random;
+	private int				nextIteration;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		File seeded = DatabaseSeeder.seed(tasks, stories, voters, iterations);
+
+		// Writes go to a copy, every trial starts from the same database
+		copy = File.createTempFile("poker-benchmark", ".db");
+		Files.copy(seeded.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+		dm = new DatabaseManager(copy.getPath());
+		random = new Random(42);
+		nextIteration = iterations + 1;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		dm.close();
+		copy.delete();
+	}
+
+	@Benchmark
+	public List<UserEstimate> getUserEstimatesForStoryWithIteration() {
+		return dm.getUserEstimatesForStoryWithIteration(randomStory(), random.nextInt(iterations));
+	}
+
+	@Benchmark
+	public List<Story> getStoriesFromTask() {
+		return dm.getStoriesFromTask(randomTask());
+	}
+
+	@Benchmark
+	public List<Task> getTasks() {
+		return dm.getTasks();
+	}
+
+	@Benchmark
+	public void addEstimateToStory() {
+		int story_id = randomStory();
+		int task_id = (story_id - 1) / stories + 1;
+		int user_id = (task_id - 1) * voters + random.nextInt(voters) + 1;
+
+		// A new iteration every time, the same vote twice would be ignored
+		dm.addEstimateToStory(story_id, user_id, 1, nextIteration++);
+	}
+
+	@Benchmark
+	public int insertTaskWithDeck() {
+		int task_id = dm.insertTask(new Task("Benchmark", "Inserted by the benchmark"));
+		dm.createEstimations(task_id, Deck.FIBONACCI);
+		return task_id;
+	}
+
+	private int randomTask() {
+		return random.nextInt(tasks) + 1;
+	}
+
+	private int randomStory() {
+		return random.nextInt(tasks * stories) + 1;
+	}
+}
@@ -0,0 +1,81 @@
+package poker.loadtest;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * Counts latencies in microseconds in log-linear buckets: values below 128 are
+ * exact, larger ones are kept to within 1/64 (about 1.6%), up to more than an
+ * hour. Recording is a single atomic increment.
+ */
+class Histogram {
+	private static final int	SUB_BITS	= 6;
+	private static final int	SUB_COUNT	= 1 << SUB_BITS;
+	private static final int	EXACT		= 2 * SUB_COUNT;
+	private static final int	BUCKETS		= EXACT + 32 * SUB_COUNT;
+
+	private final AtomicLongArray	counts	= new AtomicLongArray(BUCKETS);
+
+	void record(long micros) {
+		counts.incrementAndGet(index(Math.max(0, micros)));
+	}
+
+	long count() {
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/***
+	 * @param quantile
+	 *            Between 0 and 1, e.g. 0.999
+	 * @return The highest value of the bucket the quantile falls in, or 0 if
+	 *         nothing was recorded.
+	 */
+	long percentile(double quantile) {
+		long total = count();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				return highest(i);
+			}
+		}
+		return highest(BUCKETS - 1);
+	}
+
+	long max() {
+		for (int i = BUCKETS - 1; i >= 0; i--) {
+			if (counts.get(i) > 0) {
+				return highest(i);
+			}
+		}
+		return 0;
+	}
+
+	private static int index(long value) {
+		if (value < EXACT) {
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		int index = EXACT + (shift - 1) * SUB_COUNT + (int) (value >> shift) - SUB_COUNT;
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	private static long highest(int index) {
+		if (index < EXACT) {
+			return index;
+		}
+
+		int shift = (index - EXACT) / SUB_COUNT + 1;
+		long mantissa = (index - EXACT) % SUB_COUNT + SUB_COUNT;
+		return ((mantissa + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,129 @@
+package poker.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/***
+ * Sends requests the way a browser on the game page does, gzip included, and
+ * records how long each took until its body was read.
+ */
+class HttpClient {
+	private static final Charset	UTF_8	= Charset.forName("UTF-8");
+
+	private final String	base;
+	private final Stats		stats;
+
+	/***
+	 * A response, read in full.
+	 */
+	static class Response {
+		final int		status;
+		final String	body;
+		final String	location;
+		final String	vote;
+
+		Response(int status, String body, String location, String vote) {
+			this.status = status;
+			this.body = body;
+			this.location = location;
+			this.vote = vote;
+		}
+	}
+
+	HttpClient(String base, Stats stats) {
+		this.base = base;
+		this.stats = stats;
+	}
+
+	/***
+	 * @param route
+	 *            The route pattern the request is recorded under, or null to
+	 *            not record it.
+	 * @param path
+	 * @param timeoutMillis
+	 *            How long to wait for the response.
+	 */
+	Response get(String route, String path, int timeoutMillis) throws IOException {
+		return send(route, "GET", path, null, timeoutMillis);
+	}
+
+	/***
+	 * @param form
+	 *            Names and values of the form fields, in turn.
+	 */
+	Response post(String route, String path, int timeoutMillis, String... form) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < form.length; i += 2) {
+			if (sb.length() > 0) {
+				sb.append('&');
+			}
+			sb.append(URLEncoder.encode(form[i], "UTF-8")).append('=').append(URLEncoder.encode(form[i + 1], "UTF-8"));
+		}
+		return send(route, "POST", path, sb.toString().getBytes(UTF_8), timeoutMillis);
+	}
+
+	private Response send(String route, String method, String path, byte[] body, int timeoutMillis)
+			throws IOException {
+		long start = System.nanoTime();
+		boolean error = true;
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(base + path).openConnection();
+			connection.setRequestMethod(method);
+			connection.setInstanceFollowRedirects(false);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setRequestProperty("Accept-Encoding", "gzip");
+
+			if (body != null) {
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+				OutputStream out = connection.getOutputStream();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+
+			int status = connection.getResponseCode();
+			InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+			String text = "";
+			if (in != null) {
+				if ("gzip".equals(connection.getContentEncoding())) {
+					in = new GZIPInputStream(in);
+				}
+				// Read to the end, so the connection is kept alive
+				text = read(in);
+			}
+
+			error = status >= 400;
+			return new Response(status, text, connection.getHeaderField("Location"), connection
+					.getHeaderField("X-Vote"));
+		} finally {
+			if (route != null) {
+				stats.record(route, (System.nanoTime() - start) / 1000, error);
+			}
+		}
+	}
+
+	private static String read(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return new String(out.toByteArray(), UTF_8);
+		} finally {
+			in.close();
+		}
+	}
+}
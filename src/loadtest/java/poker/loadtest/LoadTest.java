@@ -0,0 +1,138 @@
+package poker.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Plays planning poker against a running server: -Dloadtest.rooms rooms of
+ * -Dloadtest.voters players each, every room with -Dloadtest.stories stories,
+ * for -Dloadtest.duration seconds after -Dloadtest.warmup seconds of warm-up.
+ * See {@link Voter} for what each player does.
+ *
+ * Start the server first, then run mvn -Ploadtest compile exec:java. The
+ * report lists the throughput and latency of every route and what became of
+ * the votes. It is printed and written to -Dloadtest.report. Each vote's
+ * choices are drawn from -Dloadtest.seed and the vote's place in the game, so
+ * runs with the same settings deal the same hands; how far the games get in
+ * the run still depends on how fast the server answers.
+ */
+public class LoadTest {
+
+	/***
+	 * The settings of a run, from system properties.
+	 */
+	static class Settings {
+		final String	url			= System.getProperty("loadtest.url", "http://localhost:4567");
+		final int		rooms		= Integer.getInteger("loadtest.rooms", 10);
+		final int		voters		= Integer.getInteger("loadtest.voters", 5);
+		final int		stories		= Integer.getInteger("loadtest.stories", 10);
+		final int		warmup		= Integer.getInteger("loadtest.warmup", 10);
+		final int		duration	= Integer.getInteger("loadtest.duration", 60);
+		// Mean time in ms a player takes to pick a card
+		final int		think		= Integer.getInteger("loadtest.think", 2000);
+		// How likely a player is to pick the card the room agrees on
+		final double	agreement	= Double.parseDouble(System.getProperty("loadtest.agreement", "0.8"));
+		// How likely a player is to send a vote twice
+		final double	retry		= Double.parseDouble(System.getProperty("loadtest.retry", "0.02"));
+		// poll: a request per story every 500 ms; longpoll: state?since=
+		final boolean	longPoll	= "longpoll".equals(System.getProperty("loadtest.mode", "poll"));
+		final long		seed		= Long.getLong("loadtest.seed", 1);
+		final String	report		= System.getProperty("loadtest.report", "target/loadtest-report.txt");
+
+		void print(PrintWriter out) {
+			out.println(String.format("server    %s", url));
+			out.println(String.format("rooms     %d of %d voters, %d stories each", rooms, voters, stories));
+			out.println(String.format("players   %s, think time %d ms, agreement %.2f, retries %.3f",
+					longPoll ? "long-polling" : "polling every 500 ms", think, agreement, retry));
+			out.println(String.format("run       %d s after %d s of warm-up, seed %d", duration, warmup, seed));
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Settings settings = new Settings();
+		int players = settings.rooms * settings.voters;
+
+		// Keep a connection per player alive, as its browser would
+		System.setProperty("http.maxConnections", Integer.toString(Math.max(5, players)));
+
+		Stats stats = new Stats();
+		HttpClient http = new HttpClient(settings.url, stats);
+		// Names must not clash with earlier runs on the same database
+		String run = "load-" + Long.toString(System.currentTimeMillis(), 36);
+		List<Room> rooms = new ArrayList<Room>();
+		for (int r = 0; r < settings.rooms; r++) {
+			rooms.add(Room.create(http, run + "-" + r, settings.voters, settings.stories));
+		}
+		System.out.println(String.format("Created %d rooms, starting %d players", rooms.size(), players));
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.min(256, Math.max(4, players)),
+				daemons("loadtest-scheduler"));
+		ThreadFactory playerThreads = daemons("loadtest-player");
+
+		List<Voter> voters = new ArrayList<Voter>();
+		for (int r = 0; r < rooms.size(); r++) {
+			for (int seat = 0; seat < settings.voters; seat++) {
+				Voter voter = new Voter(rooms.get(r), r, seat, http, stats, scheduler, settings);
+				voters.add(voter);
+				playerThreads.newThread(voter).start();
+			}
+		}
+
+		Thread.sleep(settings.warmup * 1000L);
+		stats.start();
+		Thread.sleep(settings.duration * 1000L);
+		stats.stop();
+
+		for (Voter voter : voters) {
+			voter.stop();
+		}
+		scheduler.shutdownNow();
+
+		StringWriter text = new StringWriter();
+		PrintWriter out = new PrintWriter(text);
+		settings.print(out);
+		out.println();
+		stats.report(out);
+		out.flush();
+
+		System.out.println();
+		System.out.print(text);
+		write(new File(settings.report), text.toString());
+	}
+
+	private static ThreadFactory daemons(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	private static void write(File file, String text) throws IOException {
+		File dir = file.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+		try {
+			out.print(text);
+		} finally {
+			out.close();
+		}
+	}
+}
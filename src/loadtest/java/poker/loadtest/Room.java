@@ -0,0 +1,115 @@
+package poker.loadtest;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/***
+ * A task with its team and stories, created through the same pages an
+ * organizer uses. The ids the server gave them are read back from its pages.
+ */
+class Room {
+	private static final int		TIMEOUT		= 30000;
+
+	private static final Pattern	TASK		= Pattern.compile("/task/(\\d+)/");
+	private static final Pattern	STORY		= Pattern.compile("id=\"ready-(\\d+)\"");
+
+	final int						task_id;
+	final int[]						users;
+	final int[]						stories;
+	final int[]						estimates;
+	private final AtomicInteger		remaining;
+
+	private Room(int task_id, int[] users, int[] stories, int[] estimates) {
+		this.task_id = task_id;
+		this.users = users;
+		this.stories = stories;
+		this.estimates = estimates;
+		this.remaining = new AtomicInteger(users.length);
+	}
+
+	/***
+	 * Creates a room. Setup requests are not recorded.
+	 *
+	 * @param name
+	 *            Unique in the database, voters are named after it.
+	 */
+	static Room create(HttpClient http, String name, int voters, int stories) throws IOException {
+		HttpClient.Response created = http.post(null, "/task/new", TIMEOUT, "task_name", name, "task_description",
+				"Load test room", "deck", "fibonacci");
+		int task_id = Integer.parseInt(find(TASK, created.location, "task id"));
+
+		for (int v = 0; v < voters; v++) {
+			http.post(null, "/task/" + task_id + "/edit/user/create", TIMEOUT, "user_name", name + "-voter-" + v);
+		}
+
+		// Every user is listed, find ours by name
+		String info = http.get(null, "/task/" + task_id + "/edit/info", TIMEOUT).body;
+		int[] users = new int[voters];
+		for (int v = 0; v < voters; v++) {
+			Pattern option = Pattern.compile("<option value=\"(\\d+)\">" + Pattern.quote(name + "-voter-" + v)
+					+ "</option>");
+			users[v] = Integer.parseInt(find(option, info, "voter " + v));
+			http.post(null, "/task/" + task_id + "/edit/user/add", TIMEOUT, "user", Integer.toString(users[v]));
+		}
+
+		for (int s = 0; s < stories; s++) {
+			http.post(null, "/task/" + task_id + "/story/add", TIMEOUT, "story_name", "Story " + s,
+					"story_description", "Load test story " + s);
+		}
+
+		// The game page lists the stories and the cards
+		String page = http.get(null, "/poker/" + task_id + "/" + users[0], TIMEOUT).body;
+		int[] storyIds = all(STORY, page);
+		if (storyIds.length != stories) {
+			throw new IOException("Room " + name + " has " + storyIds.length + " stories instead of " + stories);
+		}
+		int[] estimates = all(Pattern.compile("id=\"story-" + storyIds[0] + "-estimate-(\\d+)\""), page);
+
+		return new Room(task_id, users, storyIds, estimates);
+	}
+
+	/***
+	 * Called by each voter that saw every story decided.
+	 *
+	 * @return true for the last voter of the room.
+	 */
+	boolean voterFinished() {
+		return remaining.decrementAndGet() == 0;
+	}
+
+	/***
+	 * @param location
+	 *            A Location header, absolute or not.
+	 * @return Its path and query.
+	 */
+	static String path(String location) throws IOException {
+		return location.startsWith("/") ? location : new URL(location).getFile();
+	}
+
+	private static String find(Pattern pattern, String text, String what) throws IOException {
+		Matcher matcher = pattern.matcher(text == null ? "" : text);
+		if (!matcher.find()) {
+			throw new IOException("Could not find the " + what + " in the server's response");
+		}
+		return matcher.group(1);
+	}
+
+	private static int[] all(Pattern pattern, String text) {
+		List<Integer> found = new ArrayList<Integer>();
+		Matcher matcher = pattern.matcher(text);
+		while (matcher.find()) {
+			found.add(Integer.parseInt(matcher.group(1)));
+		}
+
+		int[] result = new int[found.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = found.get(i);
+		}
+		return result;
+	}
+}
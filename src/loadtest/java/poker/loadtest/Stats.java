@@ -0,0 +1,120 @@
+package poker.loadtest;
+
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * What the simulated players saw: requests and latencies per route, and what
+ * became of their votes. Nothing is recorded during the warm-up.
+ */
+class Stats {
+	private final ConcurrentHashMap<String, Route>	routes	= new ConcurrentHashMap<String, Route>();
+	private volatile boolean						recording;
+	private volatile long							startedAt;
+	private volatile long							stoppedAt;
+
+	// Votes sent for the first time
+	final AtomicLong	votes				= new AtomicLong();
+	final AtomicLong	counted				= new AtomicLong();
+	// Votes the server ignored because the user had already voted
+	final AtomicLong	duplicates			= new AtomicLong();
+	final AtomicLong	failed				= new AtomicLong();
+	// Votes sent again with the same key, as the page does after an error
+	final AtomicLong	retries				= new AtomicLong();
+	// Retries of a counted vote that were counted again
+	final AtomicLong	countedTwice		= new AtomicLong();
+	final AtomicLong	roomsFinished		= new AtomicLong();
+
+	private static class Route {
+		final Histogram		latency	= new Histogram();
+		final AtomicLong	errors	= new AtomicLong();
+	}
+
+	void start() {
+		startedAt = System.nanoTime();
+		recording = true;
+	}
+
+	void stop() {
+		stoppedAt = System.nanoTime();
+		recording = false;
+	}
+
+	boolean isRecording() {
+		return recording;
+	}
+
+	/***
+	 * @param route
+	 *            The route pattern, e.g. GET /task/:task_id/user/:user_id/state
+	 * @param micros
+	 * @param error
+	 *            true if the request failed or was answered with an error
+	 */
+	void record(String route, long micros, boolean error) {
+		if (!recording) {
+			return;
+		}
+
+		Route stats = routes.get(route);
+		if (stats == null) {
+			Route created = new Route();
+			stats = routes.putIfAbsent(route, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+
+		stats.latency.record(micros);
+		if (error) {
+			stats.errors.incrementAndGet();
+		}
+	}
+
+	void count(AtomicLong counter) {
+		if (recording) {
+			counter.incrementAndGet();
+		}
+	}
+
+	void report(PrintWriter out) {
+		double seconds = Math.max(1, stoppedAt - startedAt) / 1e9;
+
+		out.println(String.format("%-56s %9s %7s %9s %9s %9s %9s %9s", "route", "requests", "errors", "req/s",
+				"p50 ms", "p99 ms", "p999 ms", "max ms"));
+
+		long requests = 0;
+		long errors = 0;
+		for (Map.Entry<String, Route> entry : new TreeMap<String, Route>(routes).entrySet()) {
+			Histogram latency = entry.getValue().latency;
+			long count = latency.count();
+			requests += count;
+			errors += entry.getValue().errors.get();
+
+			out.println(String.format("%-56s %9d %7d %9.1f %9.2f %9.2f %9.2f %9.2f", entry.getKey(), count, entry
+					.getValue().errors.get(), count / seconds, millis(latency.percentile(0.5)),
+					millis(latency.percentile(0.99)), millis(latency.percentile(0.999)), millis(latency.max())));
+		}
+		out.println(String.format("%-56s %9d %7d %9.1f", "all", requests, errors, requests / seconds));
+		out.println();
+
+		out.println(String.format("votes       %d sent, %d counted", votes.get(), counted.get()));
+		out.println(String.format("duplicates  %d (%s) ignored by the server", duplicates.get(),
+				percent(duplicates.get(), votes.get())));
+		out.println(String.format("failed      %d (%s)", failed.get(), percent(failed.get(), votes.get())));
+		out.println(String.format("retries     %d sent again, %d (%s) counted twice", retries.get(),
+				countedTwice.get(), percent(countedTwice.get(), retries.get())));
+		out.println(String.format("rooms       %d finished every story", roomsFinished.get()));
+	}
+
+	private static double millis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static String percent(long part, long whole) {
+		return whole == 0 ? "-" : String.format("%.3f%%", 100.0 * part / whole);
+	}
+}
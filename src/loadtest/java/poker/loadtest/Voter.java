@@ -0,0 +1,317 @@
+package poker.loadtest;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+/***
+ * One player on the game page. Like poker.ftl it loads the page and then
+ * either polls every story every 500 ms, or long-polls the task's state as
+ * the page does without Server-Sent Events. It votes on a story after some
+ * think time whenever the state says it may. Every 333 ms it checks whether
+ * every story is decided, and then goes to the summary.
+ *
+ * The think time, card and retry of a vote are drawn from the seed, the
+ * room, the player's seat, the story and how many times the player voted on
+ * it, so they do not depend on which thread runs first.
+ */
+class Voter implements Runnable {
+	static final String	PAGE			= "GET /poker/:task_id/:user_id";
+	static final String	STORY			= "GET /task/:task_id/user/:user_id/story/:story_id";
+	static final String	STATE			= "GET /task/:task_id/user/:user_id/state?since";
+	static final String	READY			= "POST /task/:task_id/user/:user_id/story/:story_id/ready";
+	static final String	SUMMARY			= "GET /task/:id/summary";
+	static final String	SUMMARY_UNIT	= "GET /task/:id/summary/unit/:unit_id";
+
+	private static final int	POLL_INTERVAL	= 500;
+	private static final int	DONE_INTERVAL	= 333;
+	private static final int	TIMEOUT			= 30000;
+	// Longer than the server holds a poll
+	private static final int	LONG_POLL_TIMEOUT	= 60000;
+
+	private static final Gson	GSON		= new Gson();
+	private static final Type	TASK_STATE	= new TypeToken<Map<Integer, State>>() {
+											}.getType();
+
+	/***
+	 * The part of a story's state a player acts on.
+	 */
+	static class State {
+		long	version;
+		boolean	consensus;
+		int[]	voters;
+	}
+
+	private final Room						room;
+	private final int						roomIndex;
+	private final int						seat;
+	private final int						user_id;
+	private final HttpClient				http;
+	private final Stats						stats;
+	private final ScheduledExecutorService	scheduler;
+	private final LoadTest.Settings			settings;
+
+	private final Map<Integer, State>		latest		= new ConcurrentHashMap<Integer, State>();
+	// Votes scheduled on each story so far
+	private final Map<Integer, Integer>		attempts	= new ConcurrentHashMap<Integer, Integer>();
+	private final Set<Integer>				pending		= Collections
+																.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+	private volatile boolean				stopped;
+	private volatile boolean				finished;
+	private volatile ScheduledFuture<?>		doneCheck;
+
+	/***
+	 * @param room
+	 * @param roomIndex
+	 *            The room's position among the rooms of the run.
+	 * @param seat
+	 *            The player's position in the room.
+	 */
+	Voter(Room room, int roomIndex, int seat, HttpClient http, Stats stats, ScheduledExecutorService scheduler,
+			LoadTest.Settings settings) {
+		this.room = room;
+		this.roomIndex = roomIndex;
+		this.seat = seat;
+		this.user_id = room.users[seat];
+		this.http = http;
+		this.stats = stats;
+		this.scheduler = scheduler;
+		this.settings = settings;
+	}
+
+	void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		try {
+			http.get(PAGE, "/poker/" + room.task_id + "/" + user_id, TIMEOUT);
+		} catch (IOException e) {
+			// recorded as an error, the page's script would not run
+			return;
+		}
+
+		doneCheck = scheduler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				checkDone();
+			}
+		}, DONE_INTERVAL, DONE_INTERVAL, TimeUnit.MILLISECONDS);
+
+		if (settings.longPoll) {
+			longPoll();
+		} else {
+			poll();
+		}
+	}
+
+	private void poll() {
+		while (!stopped && !finished) {
+			long start = System.currentTimeMillis();
+			for (int story_id : room.stories) {
+				try {
+					HttpClient.Response response = http.get(STORY, "/task/" + room.task_id + "/user/" + user_id
+							+ "/story/" + story_id, TIMEOUT);
+					if (response.status == 200) {
+						apply(story_id, GSON.fromJson(response.body, State.class));
+					}
+				} catch (IOException | JsonParseException e) {
+					// recorded as an error
+				}
+			}
+
+			if (!sleep(POLL_INTERVAL - (System.currentTimeMillis() - start))) {
+				return;
+			}
+		}
+	}
+
+	private void longPoll() {
+		long since = 0;
+		while (!stopped && !finished) {
+			try {
+				HttpClient.Response response = http.get(STATE, "/task/" + room.task_id + "/user/" + user_id
+						+ "/state?since=" + since, LONG_POLL_TIMEOUT);
+				if (response.status == 200) {
+					Map<Integer, State> states = GSON.fromJson(response.body, TASK_STATE);
+					for (Map.Entry<Integer, State> entry : states.entrySet()) {
+						since = Math.max(since, entry.getValue().version);
+						apply(entry.getKey(), entry.getValue());
+					}
+				}
+			} catch (IOException | JsonParseException e) {
+				// recorded as an error, the page waits a second
+				if (!sleep(1000)) {
+					return;
+				}
+			}
+		}
+	}
+
+	private synchronized void apply(int story_id, State state) {
+		State seen = latest.get(story_id);
+		// A poll answered before a vote must not undo it
+		if (state == null || (seen != null && state.version <= seen.version)) {
+			return;
+		}
+
+		latest.put(story_id, state);
+		consider(story_id, state);
+	}
+
+	private synchronized void consider(final int story_id, State state) {
+		if (stopped || state == null || state.consensus || contains(state.voters, user_id)
+				|| !pending.add(story_id)) {
+			return;
+		}
+
+		Integer attempt = attempts.get(story_id);
+		attempt = attempt == null ? 0 : attempt + 1;
+		attempts.put(story_id, attempt);
+
+		final Random random = choices(story_id, attempt);
+		long think = (long) (settings.think * (0.5 + random.nextDouble()));
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				vote(story_id, random);
+			}
+		}, think, TimeUnit.MILLISECONDS);
+	}
+
+	/***
+	 * @return The source of a vote's choices, seeded from the run's seed and
+	 *         the vote's place in the game only.
+	 */
+	private Random choices(int story_id, int attempt) {
+		long hash = settings.seed;
+		for (long part : new long[] { roomIndex, seat, storyIndex(story_id), attempt }) {
+			hash = mix(hash * 31 + part);
+		}
+		return new Random(hash);
+	}
+
+	private int storyIndex(int story_id) {
+		int story = 0;
+		while (room.stories[story] != story_id) {
+			story++;
+		}
+		return story;
+	}
+
+	// The finalizer of MurmurHash3, spreads every input bit over the result
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private void vote(int story_id, Random random) {
+		try {
+			// Most of the team agrees on a card of its own for each story
+			int estimate_id = random.nextDouble() < settings.agreement ? room.estimates[storyIndex(story_id)
+					% room.estimates.length] : room.estimates[random.nextInt(room.estimates.length)];
+			String key = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+			String path = "/task/" + room.task_id + "/user/" + user_id + "/story/" + story_id + "/ready";
+
+			stats.count(stats.votes);
+			HttpClient.Response response = http.post(READY, path, TIMEOUT, "estimate_id",
+					Integer.toString(estimate_id), "key", key);
+			if (response.status != 200) {
+				stats.count(stats.failed);
+				return;
+			}
+
+			boolean counted = "counted".equals(response.vote);
+			stats.count(counted ? stats.counted : stats.duplicates);
+
+			// As the page does when a vote seems lost
+			if (random.nextDouble() < settings.retry) {
+				stats.count(stats.retries);
+				HttpClient.Response again = http.post(READY, path, TIMEOUT, "estimate_id",
+						Integer.toString(estimate_id), "key", key);
+				if (counted && "counted".equals(again.vote)) {
+					stats.count(stats.countedTwice);
+				}
+			}
+
+			apply(story_id, GSON.fromJson(response.body, State.class));
+
+		} catch (IOException | JsonParseException e) {
+			stats.count(stats.failed);
+		} finally {
+			pending.remove(story_id);
+			// The vote may have ended the iteration, in which case there is
+			// another vote to cast
+			consider(story_id, latest.get(story_id));
+		}
+	}
+
+	private void checkDone() {
+		if (finished || stopped) {
+			return;
+		}
+
+		for (int story_id : room.stories) {
+			State state = latest.get(story_id);
+			if (state == null || !state.consensus) {
+				return;
+			}
+		}
+
+		finished = true;
+		doneCheck.cancel(false);
+		try {
+			HttpClient.Response summary = http.get(SUMMARY, "/task/" + room.task_id + "/summary", TIMEOUT);
+			if (summary.location != null) {
+				http.get(SUMMARY_UNIT, Room.path(summary.location), TIMEOUT);
+			}
+		} catch (IOException e) {
+			// recorded as an error
+		}
+
+		if (room.voterFinished()) {
+			stats.roomsFinished.incrementAndGet();
+		}
+	}
+
+	private boolean sleep(long millis) {
+		if (millis <= 0) {
+			return true;
+		}
+		try {
+			Thread.sleep(millis);
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private static boolean contains(int[] ids, int id) {
+		if (ids == null) {
+			return false;
+		}
+		for (int i : ids) {
+			if (i == id) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
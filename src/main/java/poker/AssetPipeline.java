@@ -0,0 +1,178 @@
+package poker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/***
+ * Builds the static asset bundles: the minified stylesheets and scripts in
+ * /content are concatenated into one file per type, named after a hash of
+ * their content, and gzipped ahead of time.
+ *
+ * Run by Maven after the resources are copied, see pom.xml. It writes the
+ * bundles and a manifest.properties mapping bundle names to file names into
+ * the given directory, which ends up as /assets on the classpath.
+ */
+public class AssetPipeline {
+	public static final String	MANIFEST	= "manifest.properties";
+
+	// The bundle name, followed by the classpath resources it is made of
+	private static final String[][]	BUNDLES	= {
+			{ "app.css", "/content/css/bootstrap.min.css", "/content/css/bootstrap-responsive.min.css" },
+			{ "app.js", "/content/js/jquery-1.9.1.min.js", "/content/js/bootstrap.min.js" } };
+
+	/***
+	 * A bundle, ready to be served.
+	 */
+	public static class Asset {
+		private final String	name;
+		private final String	fileName;
+		private final byte[]	content;
+		private final byte[]	gzipped;
+
+		public Asset(String name, String fileName, byte[] content, byte[] gzipped) {
+			this.name = name;
+			this.fileName = fileName;
+			this.content = content;
+			this.gzipped = gzipped;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/***
+		 * @return The name with the content hash, e.g. app-0a1b2c3d4e5f.js
+		 */
+		public String getFileName() {
+			return fileName;
+		}
+
+		public byte[] getContent() {
+			return content;
+		}
+
+		public byte[] getGzipped() {
+			return gzipped;
+		}
+
+		public String getContentType() {
+			return name.endsWith(".css") ? "text/css; charset=UTF-8" : "application/javascript; charset=UTF-8";
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("Usage: AssetPipeline <output directory>");
+			System.exit(1);
+		}
+
+		File dir = new File(args[0]);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Could not create " + dir);
+		}
+
+		Properties manifest = new Properties();
+		for (Asset asset : build()) {
+			write(new File(dir, asset.getFileName()), asset.getContent());
+			write(new File(dir, asset.getFileName() + ".gz"), asset.getGzipped());
+			manifest.setProperty(asset.getName(), asset.getFileName());
+
+			System.out.println(String.format("%s -> %s (%d bytes, %d gzipped)", asset.getName(),
+					asset.getFileName(), asset.getContent().length, asset.getGzipped().length));
+		}
+
+		OutputStream out = new FileOutputStream(new File(dir, MANIFEST));
+		try {
+			manifest.store(out, "Generated by poker.AssetPipeline");
+		} finally {
+			out.close();
+		}
+	}
+
+	/***
+	 * @return Every bundle, built from the classpath.
+	 * @throws IOException
+	 *             If a source of a bundle is missing.
+	 */
+	public static List<Asset> build() throws IOException {
+		List<Asset> assets = new ArrayList<Asset>();
+		for (String[] bundle : BUNDLES) {
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			for (int i = 1; i < bundle.length; i++) {
+				content.write(read(bundle[i]));
+				// Sources do not always end with a line break
+				content.write('\n');
+			}
+
+			byte[] bytes = content.toByteArray();
+			assets.add(new Asset(bundle[0], hashedName(bundle[0], bytes), bytes, gzip(bytes)));
+		}
+		return assets;
+	}
+
+	static byte[] read(String resource) throws IOException {
+		InputStream in = AssetPipeline.class.getResourceAsStream(resource);
+		if (in == null) {
+			throw new IOException("Missing asset " + resource);
+		}
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static String hashedName(String name, byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 6; i++) {
+				sb.append(String.format("%02x", digest[i]));
+			}
+
+			int dot = name.lastIndexOf('.');
+			return name.substring(0, dot) + "-" + sb + name.substring(dot);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] gzip(byte[] content) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		GZIPOutputStream out = new GZIPOutputStream(bytes) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		};
+		out.write(content);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static void write(File file, byte[] content) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package poker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poker.AssetPipeline.Asset;
+import spark.Request;
+import spark.Response;
+import freemarker.template.SimpleScalar;
+import freemarker.template.TemplateMethodModelEx;
+import freemarker.template.TemplateModelException;
+import freemarker.template.TemplateScalarModel;
+
+/***
+ * Serves the bundles built by {@link AssetPipeline} from memory under
+ * /assets/, with long-lived cache headers: a bundle's file name changes with
+ * its content, so a cached copy never has to be checked.
+ *
+ * Templates get the current file name of a bundle from the asset method, as
+ * in ${asset("app.js")}.
+ */
+public class Assets {
+	private static final Logger	log				= LoggerFactory.getLogger(Assets.class);
+
+	public static final String	PATH			= "/assets/";
+	private static final String	CACHE_CONTROL	= "public, max-age=31536000, immutable";
+
+	private final Map<String, Asset>	byName		= new HashMap<String, Asset>();
+	private final Map<String, Asset>	byFileName	= new HashMap<String, Asset>();
+
+	private Assets(List<Asset> assets) {
+		for (Asset asset : assets) {
+			byName.put(asset.getName(), asset);
+			byFileName.put(asset.getFileName(), asset);
+		}
+	}
+
+	/***
+	 * Loads the bundles written at build time. When they are missing, as when
+	 * running from an IDE, they are built now.
+	 */
+	public static Assets load() {
+		try {
+			InputStream in = Assets.class.getResourceAsStream(PATH + AssetPipeline.MANIFEST);
+			if (in == null) {
+				log.warn("No prebuilt assets found, building them");
+				return new Assets(AssetPipeline.build());
+			}
+
+			Properties manifest = new Properties();
+			try {
+				manifest.load(in);
+			} finally {
+				in.close();
+			}
+
+			List<Asset> assets = new ArrayList<Asset>();
+			for (String name : manifest.stringPropertyNames()) {
+				String fileName = manifest.getProperty(name);
+				assets.add(new Asset(name, fileName, AssetPipeline.read(PATH + fileName), AssetPipeline.read(PATH
+						+ fileName + ".gz")));
+			}
+			return new Assets(assets);
+
+		} catch (IOException e) {
+			throw new IllegalStateException("Could not load the static assets", e);
+		}
+	}
+
+	/***
+	 * @param name
+	 *            A bundle name, like app.js
+	 * @return The path the bundle is currently served at.
+	 */
+	public String path(String name) {
+		Asset asset = byName.get(name);
+		if (asset == null) {
+			throw new IllegalArgumentException("Unknown asset " + name);
+		}
+		return PATH + asset.getFileName();
+	}
+
+	/***
+	 * @return The asset method for templates.
+	 */
+	public TemplateMethodModelEx helper() {
+		return new TemplateMethodModelEx() {
+			@Override
+			public Object exec(@SuppressWarnings("rawtypes") List arguments) throws TemplateModelException {
+				if (arguments.size() != 1) {
+					throw new TemplateModelException("asset takes the name of a bundle");
+				}
+				try {
+					return new SimpleScalar(path(((TemplateScalarModel) arguments.get(0)).getAsString()));
+				} catch (IllegalArgumentException e) {
+					throw new TemplateModelException(e.getMessage());
+				}
+			}
+		};
+	}
+
+	/***
+	 * Writes a bundle, gzipped if the client accepts it.
+	 *
+	 * @param fileName
+	 * @param request
+	 * @param response
+	 * @return What the route has to return.
+	 */
+	public String serve(String fileName, Request request, Response response) {
+		Asset asset = byFileName.get(fileName);
+		if (asset == null) {
+			response.status(404);
+			return "";
+		}
+
+		String accept = request.headers("Accept-Encoding");
+		boolean gzip = accept != null && accept.contains("gzip");
+		byte[] body = gzip ? asset.getGzipped() : asset.getContent();
+
+		HttpServletResponse raw = response.raw();
+		raw.setContentType(asset.getContentType());
+		raw.setHeader("Cache-Control", CACHE_CONTROL);
+		raw.setHeader("Vary", "Accept-Encoding");
+		if (gzip) {
+			raw.setHeader("Content-Encoding", "gzip");
+		}
+		raw.setContentLength(body.length);
+
+		try {
+			OutputStream out = raw.getOutputStream();
+			out.write(body);
+			out.flush();
+		} catch (IOException e) {
+			log.warn("Could not write asset {}", fileName, e);
+		}
+		return "";
+	}
+}
@@ -0,0 +1,96 @@
+package poker;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+
+/***
+ * Content-encoding negotiation for dynamic responses, and what compressing
+ * them costs and saves.
+ *
+ * The {@link #filter()} runs before every route and records whether the
+ * client accepts gzip. {@link HttpOutput} then compresses responses of at
+ * least -Dpoker.gzip.threshold bytes (1024 by default) at
+ * -Dpoker.gzip.level (1-9, 6 by default). -Dpoker.gzip=false turns it off.
+ */
+public class Compression {
+	public static final boolean	ENABLED		= Boolean.parseBoolean(System.getProperty("poker.gzip", "true"));
+	public static final int		THRESHOLD	= Integer.getInteger("poker.gzip.threshold", 1024);
+	public static final int		LEVEL		= Integer.getInteger("poker.gzip.level", 6);
+
+	private static final String	ATTRIBUTE	= "poker.gzip";
+
+	private static final ThreadMXBean	threads		= ManagementFactory.getThreadMXBean();
+	private static final boolean		CPU_TIME	= threads.isCurrentThreadCpuTimeSupported();
+
+	private static final AtomicLong	responses	= new AtomicLong();
+	private static final AtomicLong	bytesIn		= new AtomicLong();
+	private static final AtomicLong	bytesOut	= new AtomicLong();
+	private static final AtomicLong	cpuNanos	= new AtomicLong();
+
+	/***
+	 * @return The filter negotiating the encoding of every dynamic response.
+	 *         Static assets are precompressed and negotiate their own.
+	 */
+	public static Filter filter() {
+		return new Filter() {
+			@Override
+			public void handle(Request request, Response response) {
+				if (!ENABLED || request.pathInfo().startsWith(Assets.PATH)) {
+					return;
+				}
+
+				String accept = request.headers("Accept-Encoding");
+				if (accept != null && accept.contains("gzip")) {
+					request.attribute(ATTRIBUTE, Boolean.TRUE);
+				}
+			}
+		};
+	}
+
+	/***
+	 * @param request
+	 * @return true if the response to the request may be gzipped.
+	 */
+	public static boolean accepted(Request request) {
+		return request.attribute(ATTRIBUTE) != null;
+	}
+
+	/***
+	 * @return The CPU time of the current thread in nanoseconds, or the wall
+	 *         clock if the JVM cannot measure it.
+	 */
+	static long time() {
+		return CPU_TIME ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+	}
+
+	static void record(long in, long out, long nanos) {
+		bytesIn.addAndGet(in);
+		bytesOut.addAndGet(out);
+		cpuNanos.addAndGet(nanos);
+	}
+
+	static void compressed() {
+		responses.incrementAndGet();
+	}
+
+	/***
+	 * @return The number of compressed responses, their size before and
+	 *         after compression and the CPU time spent compressing them.
+	 */
+	public static Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("gzip_responses", responses.get());
+		stats.put("gzip_bytes_in", bytesIn.get());
+		stats.put("gzip_bytes_out", bytesOut.get());
+		stats.put("gzip_bytes_saved", bytesIn.get() - bytesOut.get());
+		stats.put("gzip_cpu_millis", cpuNanos.get() / 1000000);
+		return stats;
+	}
+}
@@ -0,0 +1,190 @@
+package poker;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.sqlite.SQLiteConfig;
+
+/***
+ * Connections to a SQLite database in WAL mode: a pool of read-only
+ * connections that can be used in parallel, and a single writer connection
+ * guarded by a lock, matching SQLite's single writer.
+ *
+ * Both kinds of leases are reentrant per thread, and a thread holding the
+ * writer reads through the writer so it sees its own changes. Every
+ * connection keeps its own {@link StatementCache}.
+ *
+ * Time spent waiting for a connection and holding the writer is recorded in
+ * {@link Metrics}, apart from the time queries take. The end of a lease ends
+ * the timing of its last statement, see {@link StatementCache#finish()}.
+ */
+public class ConnectionPool {
+	private static final Logger				log			= LoggerFactory.getLogger(ConnectionPool.class);
+
+	private final Connection				writer;
+	private final ReentrantLock				writeLock	= new ReentrantLock();
+	private final BlockingQueue<Connection>	readers;
+	private final List<Connection>			all			= new ArrayList<Connection>();
+	private final ThreadLocal<Lease>		leases		= new ThreadLocal<Lease>();
+	// When the current holder of the writer locked it
+	private long							writeLockedAt;
+
+	private final Metrics.Histogram	readWait	= Metrics.LOCK_WAIT.labels("read");
+	private final Metrics.Histogram	writeWait	= Metrics.LOCK_WAIT.labels("write");
+	private final Metrics.Histogram	writeHeld	= Metrics.LOCK_HELD.labels("write");
+
+	private final Map<Connection, StatementCache>	statements		= new IdentityHashMap<Connection, StatementCache>();
+	private final AtomicLong						statementHits	= new AtomicLong();
+	private final AtomicLong						statementMisses	= new AtomicLong();
+
+	public ConnectionPool(String url, int readerCount) throws SQLException {
+		writer = DriverManager.getConnection(url);
+		add(writer);
+
+		Statement statement = writer.createStatement();
+		statement.execute("PRAGMA journal_mode=WAL");
+		// Durable at checkpoints, which is what WAL mode is designed for
+		statement.execute("PRAGMA synchronous=NORMAL");
+		statement.close();
+
+		SQLiteConfig config = new SQLiteConfig();
+		config.setReadOnly(true);
+
+		readers = new ArrayBlockingQueue<Connection>(readerCount);
+		for (int i = 0; i < readerCount; i++) {
+			Connection reader = DriverManager.getConnection(url, config.toProperties());
+			readers.add(reader);
+			add(reader);
+		}
+	}
+
+	/***
+	 * @param connection
+	 *            A connection leased from this pool by the current thread.
+	 * @param sql
+	 * @return A cached prepared statement for the SQL on that connection.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+		return statements.get(connection).prepare(sql);
+	}
+
+	public long getStatementHits() {
+		return statementHits.get();
+	}
+
+	public long getStatementMisses() {
+		return statementMisses.get();
+	}
+
+	private void add(Connection connection) {
+		all.add(connection);
+		statements.put(connection, new StatementCache(connection, statementHits, statementMisses));
+	}
+
+	/***
+	 * Leases a read-only connection, waiting for one to be released if all
+	 * of them are in use. Must be paired with {@link #releaseRead(Connection)}.
+	 *
+	 * @return A connection to read from.
+	 */
+	public Connection acquireRead() {
+		Lease lease = leases.get();
+		if (lease != null) {
+			lease.depth++;
+			return lease.connection;
+		}
+
+		Connection connection;
+		if (writeLock.isHeldByCurrentThread()) {
+			connection = writer;
+		} else {
+			long start = System.nanoTime();
+			try {
+				connection = readers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while waiting for a database connection", e);
+			}
+			readWait.since(start);
+		}
+
+		leases.set(new Lease(connection));
+		return connection;
+	}
+
+	public void releaseRead(Connection connection) {
+		Lease lease = leases.get();
+		if (lease == null || lease.connection != connection) {
+			throw new IllegalStateException("Connection was not leased by this thread");
+		}
+
+		if (--lease.depth == 0) {
+			leases.remove();
+			statements.get(connection).finish();
+			if (connection != writer) {
+				readers.add(connection);
+			}
+		}
+	}
+
+	/***
+	 * Locks and returns the writer connection. Must be paired with
+	 * {@link #releaseWrite()}.
+	 *
+	 * @return The writer connection.
+	 */
+	public Connection acquireWrite() {
+		if (writeLock.isHeldByCurrentThread()) {
+			writeLock.lock();
+			return writer;
+		}
+
+		long start = System.nanoTime();
+		writeLock.lock();
+		writeLockedAt = System.nanoTime();
+		writeWait.observe(writeLockedAt - start);
+		return writer;
+	}
+
+	public void releaseWrite() {
+		if (writeLock.getHoldCount() == 1) {
+			statements.get(writer).finish();
+			writeHeld.since(writeLockedAt);
+		}
+		writeLock.unlock();
+	}
+
+	public void close() {
+		for (Connection connection : all) {
+			statements.get(connection).close();
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log.warn("Could not close connection", e);
+			}
+		}
+	}
+
+	private static class Lease {
+		private final Connection	connection;
+		private int					depth	= 1;
+
+		Lease(Connection connection) {
+			this.connection = connection;
+		}
+	}
+}
@@ -1,24 +1,25 @@
 package poker;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.SQLException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.javatuples.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import poker.entities.Deck;
 import poker.entities.Estimate;
 import poker.entities.Story;
 import poker.entities.Task;
@@ -27,580 +28,696 @@ import poker.entities.User;
 import poker.entities.UserEstimate;
 
 public class DatabaseManager {
-	private static final String	JDBC_SQLITE_POKER_DB	= "jdbc:sqlite:poker.db";
-	private SimpleDateFormat	dateFormat				= new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	private OutputStream		debug;
+	private static final Logger	log						= LoggerFactory.getLogger(DatabaseManager.class);
+
+	private static final String	DB_FILE					= System.getProperty("poker.db", "poker.db");
+	private static final int	READER_COUNT			= Integer.getInteger("poker.db.readers",
+																Runtime.getRuntime().availableProcessors());
+
+	// SimpleDateFormat is not thread-safe and reads no longer share a lock
+	private ThreadLocal<SimpleDateFormat>	dateFormat	= new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		}
+	};
 	private boolean				debugging				= false;
-	private Connection			connection				= null;
+	private final String		file;
+	private ConnectionPool		pool					= null;
+
+	// Estimated bytes each entity cache may use
+	private static final long	CACHE_BYTES				= Long.getLong("poker.cache.bytes", 1024 * 1024);
+
+	private final EntityCache<User>		users		= new EntityCache<User>("user_cache", CACHE_BYTES, USER_WEIGHER);
+	private final EntityCache<Estimate>	estimates	= new EntityCache<Estimate>("estimate_cache", CACHE_BYTES,
+															ESTIMATE_WEIGHER);
+	private final EntityCache<Story>		stories		= new EntityCache<Story>("story_cache", CACHE_BYTES, STORY_WEIGHER);
+
+	// Decks are read on every page of a game and almost never change
+	private final ConcurrentHashMap<Integer, DeckSnapshot>	decks			= new ConcurrentHashMap<Integer, DeckSnapshot>();
+	private final AtomicLong								deckGeneration	= new AtomicLong();
+
+	// Changes with every write except votes, see getVersion()
+	private final AtomicLong	version	= new AtomicLong();
+
+	private static final String	INSERT_TASK				= "INSERT into tasks (name, description) values (?,?)";
+	private static final String	INSERT_STORY			= "INSERT into stories (task_id, name, description) values (?,?,?)";
+	private static final String	INSERT_USER				= "INSERT into users (name) values (?)";
+	private static final String	INSERT_ESTIMATE			= "INSERT into estimations (task_id, complexity_symbol, unit, unit_value) values (?,?,?,?)";
+	private static final String	INSERT_VOTE				= "INSERT OR IGNORE INTO story_user_estimations (story_id, user_id, estimation_id, story_iteration) VALUES (?,?,?,?)";
+	private static final String	SET_ITERATION			= "UPDATE stories SET iteration=? where id=?";
+	private static final String	SET_CONSENSUS			= "UPDATE stories SET consensus=? where id=?";
+
+	private static final String	TASK_COLUMNS			= "id, name, description, datetime(created_at), datetime(published_at)";
+
+	// A vote joined with its user and estimate, see readUserEstimate
+	private static final String	USER_ESTIMATE_COLUMNS	= "sue.story_id, sue.story_iteration, "
+																+ "u.id as 'user_id', u.name as 'user_name', "
+																+ "e.id as 'estimate_id', e.task_id, e.complexity_symbol, e.unit, e.unit_value "
+																+ "from story_user_estimations sue "
+																+ "inner join users u on sue.user_id=u.id "
+																+ "inner join estimations e on sue.estimation_id=e.id ";
+
+	private interface Binder<T> {
+		void bind(PreparedStatement ps, T item) throws SQLException;
+	}
 
-	private void debug(String msg) {
-		if (debug == null) {
-			System.out.println(msg);
-			return;
+	private static final Binder<Task>		TASK_BINDER		= new Binder<Task>() {
+		@Override
+		public void bind(PreparedStatement ps, Task task) throws SQLException {
+			ps.setString(1, task.getName());
+			ps.setString(2, task.getDescription());
 		}
+	};
 
-		try {
-			debug.write(msg.getBytes(Charset.forName("UTF-8")));
-			debug.write('\n');
-			debug.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
+	private static final Binder<Story>		STORY_BINDER	= new Binder<Story>() {
+		@Override
+		public void bind(PreparedStatement ps, Story story) throws SQLException {
+			ps.setInt(1, story.getTaskId());
+			ps.setString(2, story.getName());
+			ps.setString(3, story.getDescription());
+		}
+	};
+
+	private static final Binder<User>		USER_BINDER		= new Binder<User>() {
+		@Override
+		public void bind(PreparedStatement ps, User user) throws SQLException {
+			ps.setString(1, user.getName());
+		}
+	};
+
+	private static final Binder<Estimate>	ESTIMATE_BINDER	= new Binder<Estimate>() {
+		@Override
+		public void bind(PreparedStatement ps, Estimate estimate) throws SQLException {
+			ps.setInt(1, estimate.getTaskId());
+			ps.setString(2, estimate.getComplexitySymbol());
+			ps.setInt(3, estimate.getUnit().getCode());
+			ps.setFloat(4, estimate.getUnitValue());
 		}
+	};
+
+	// Rough sizes: object headers and fields, plus a map entry per cache
+	// entry, plus the characters of the strings
+	private static final EntityCache.Weigher<User>		USER_WEIGHER		= new EntityCache.Weigher<User>() {
+		@Override
+		public int weigh(User user) {
+			return 88 + stringWeight(user.getName());
+		}
+	};
+
+	private static final EntityCache.Weigher<Estimate>	ESTIMATE_WEIGHER	= new EntityCache.Weigher<Estimate>() {
+		@Override
+		public int weigh(Estimate estimate) {
+			return 104 + stringWeight(estimate.getComplexitySymbol());
+		}
+	};
+
+	private static final EntityCache.Weigher<Story>		STORY_WEIGHER		= new EntityCache.Weigher<Story>() {
+		@Override
+		public int weigh(Story story) {
+			return 112 + stringWeight(story.getName()) + stringWeight(story.getDescription());
+		}
+	};
+
+	private static int stringWeight(String s) {
+		return s == null ? 0 : 40 + 2 * s.length();
+	}
+
+	public DatabaseManager() {
+		this(DB_FILE);
 	}
 
-	public DatabaseManager(OutputStream stream) {
+	/***
+	 * @param file
+	 *            The SQLite database file, created if missing.
+	 */
+	public DatabaseManager(String file) {
+		this.file = file;
 		init();
-		this.debug = stream;
 	}
 
-	public synchronized void init() {
+	public void init() {
 		try {
-			connection = DriverManager.getConnection(JDBC_SQLITE_POKER_DB);
+			pool = new ConnectionPool("jdbc:sqlite:" + file, READER_COUNT);
 
-			createTables(connection);
+			Connection connection = pool.acquireWrite();
+			try {
+				int version = SchemaMigrations.migrate(connection);
+				log.debug("Database schema is at version {}", version);
+
+				if (Boolean.getBoolean("poker.demo")) {
+					seedDemoData();
+				}
+			} finally {
+				pool.releaseWrite();
+			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void createTables(Connection connection) throws Exception {
-		Statement statement = connection.createStatement();
-		statement.setQueryTimeout(30); // timeout after 30 seconds
-
-		// this table will store the individual tasks
-		statement.execute("drop table if exists tasks");
-		statement.execute("create table tasks ( " + "id integer primary key autoincrement, "
-		// task's name
-				+ "name text, "
-				// task's description
-				+ "description text, "
-				// When it was created
-				+ "created_at datetime DEFAULT (datetime('now', 'localtime')), "
-				// When it was published
-				+ "published_at datetime " + ")");
-
-		// This table will store the individual estimations created by each
-		// task
-		statement.execute("drop table if exists estimations");
-		statement.execute("create table estimations (" + "id integer primary key autoincrement, "
-		// task.id
-				+ "task_id integer, "
-				// the complexity symbol (can be special, like coffee mug) [what
-				// will be shown on the card]
-				+ "complexity_symbol text, "
-				// the unit, we should create an enum for this that uses the
-				// same integer values
-				+ "unit integer DEFAULT 1, "
-				// the value of this complexity in its unit
-				+ "unit_value REAL " + ")");
-
-		// This table will store the individual users
-		statement.execute("drop table if exists users");
-		statement.execute("create table users ( " + "id integer primary key autoincrement, "
-		// user's name
-				+ "name text)");
-
-		// This table will store the team of users for each task
-		statement.execute("drop table if exists task_team");
-		statement.execute("create table task_team ( " + "id integer primary key autoincrement, "
-		// users.id
-				+ "user_id integer, "
-				// task.id
-				+ "task_id integer " + ")");
-
-		// This table will store the individual stories
-		statement.execute("drop table if exists stories");
-		statement.execute("create table stories ( " + "id integer primary key autoincrement, "
-		// tasks.id
-				+ "task_id integer, "
-				// story's name
-				+ "name text, "
-				// story's description
-				+ "description text, "
-				// will be set to the final value after consensus has been
-				// reached
-				+ "consensus integer DEFAULT -1,"
-				// current iteration, so we can figure out consensus and how
-				// long it took etc. etc.
-				+ "iteration integer DEFAULT 0)");
-
-		// This table will store the estimations for each user
-		statement.execute("drop table if exists story_user_estimations");
-		statement.execute("create table story_user_estimations ( " + "id integer primary key autoincrement, "
-		// story.id
-				+ "story_id integer, "
-				// users.id
-				+ "user_id integer, "
-				// estimations.id
-				+ "estimation_id integer, "
-				// the value of the current iteration of the story id when
-				// insert (so we can keep track of during which iteration the
-				// estimate was made)
-				+ "story_iteration integer" + ")");
-
-		if (true) {
-			insertUser(new User("Bengt"));
-			insertUser(new User("Soheil"));
-			insertUser(new User("Alexander"));
-			insertUser(new User("Anders"));
-			insertUser(new User("Daniel"));
-
-			insertTask(new Task("Planning Poker", "Implement Planning Poker"));
-			insertTask(new Task("Write manual", "Write the manual for our implementation of PLanning Poker"));
-
-			createFibonacciEstimations(1);
-			createFibonacciEstimations(2);
-
-			insertStory(new Story(1, "Database Operations", "Implement the database operations"));
-			insertStory(new Story(1, "Write templates", "Implement the templates for the different pages of the game"));
-			insertStory(new Story(1, "Set up the routes", "Create the rotues for the different pages of the game"));
-
-			insertStory(new Story(2, "Create LaTeX document", "Create the LaTeX document"));
-
-			addUserToTask(1, 1);
-			addUserToTask(1, 2);
-			addUserToTask(1, 3);
-
-			addUserToTask(2, 4);
-			addUserToTask(2, 5);
-
-			// addEstimateToStory(1, 1, 4);
-			// addEstimateToStory(1, 2, 4);
-			// addEstimateToStory(1, 2, 3);
-		}
-	}
-
-	public synchronized void createFibonacciEstimations(int task_id) {
-		insertEstimate(new Estimate(task_id, "0", UnitType.PERSON_DAYS, 0));
-		insertEstimate(new Estimate(task_id, "1/2", UnitType.PERSON_DAYS, 0.5f));
-		insertEstimate(new Estimate(task_id, "1", UnitType.PERSON_DAYS, 1f));
-		insertEstimate(new Estimate(task_id, "2", UnitType.PERSON_DAYS, 2f));
-		insertEstimate(new Estimate(task_id, "3", UnitType.PERSON_DAYS, 3f));
-		insertEstimate(new Estimate(task_id, "5", UnitType.PERSON_DAYS, 5f));
-		insertEstimate(new Estimate(task_id, "8", UnitType.PERSON_DAYS, 8f));
-		insertEstimate(new Estimate(task_id, "13", UnitType.PERSON_DAYS, 13f));
-		insertEstimate(new Estimate(task_id, "20", UnitType.PERSON_DAYS, 20f));
-		insertEstimate(new Estimate(task_id, "40", UnitType.PERSON_DAYS, 40f));
-		insertEstimate(new Estimate(task_id, "100", UnitType.PERSON_DAYS, 100f));
-		insertEstimate(new Estimate(task_id, "?", UnitType.PERSON_DAYS, -1));
-		insertEstimate(new Estimate(task_id, "coffee", UnitType.PERSON_DAYS, -1));
-	}
-
-	public synchronized Task getTask(int id) {
+			log.error("Could not initialize the database", e);
+		}
+	}
+
+	/***
+	 * Closes every connection to the database.
+	 */
+	public void close() {
+		pool.close();
+	}
+
+	/***
+	 * Adds a few users and tasks to an empty database, so there is something
+	 * to play with. Only done when started with -Dpoker.demo=true.
+	 */
+	private void seedDemoData() {
+		if (!getTasks(0, 1).isEmpty()) {
+			return;
+		}
+
+		int bengt = insertUser(new User("Bengt"));
+		int soheil = insertUser(new User("Soheil"));
+		int alexander = insertUser(new User("Alexander"));
+		int anders = insertUser(new User("Anders"));
+		int daniel = insertUser(new User("Daniel"));
+
+		int poker = insertTask(new Task("Planning Poker", "Implement Planning Poker"));
+		int manual = insertTask(new Task("Write manual", "Write the manual for our implementation of PLanning Poker"));
+
+		createFibonacciEstimations(poker);
+		createFibonacciEstimations(manual);
+
+		insertStory(new Story(poker, "Database Operations", "Implement the database operations"));
+		insertStory(new Story(poker, "Write templates", "Implement the templates for the different pages of the game"));
+		insertStory(new Story(poker, "Set up the routes", "Create the rotues for the different pages of the game"));
+
+		insertStory(new Story(manual, "Create LaTeX document", "Create the LaTeX document"));
+
+		addUserToTask(poker, bengt);
+		addUserToTask(poker, soheil);
+		addUserToTask(poker, alexander);
+
+		addUserToTask(manual, anders);
+		addUserToTask(manual, daniel);
+	}
+
+	public void createFibonacciEstimations(int task_id) {
+		createEstimations(task_id, Deck.FIBONACCI);
+	}
+
+	/***
+	 * Creates the cards of a deck for a task as a single batch in one
+	 * transaction.
+	 * 
+	 * @param task_id
+	 * @param deck
+	 * @return The ids of the new estimates, in deck order.
+	 */
+	public int[] createEstimations(int task_id, Deck deck) {
+		log.debug("Creating deck {} for task [{}]", deck.getId(), task_id);
+
+		return insertEstimates(deck.toEstimates(task_id));
+	}
+
+	public Task getTask(int id) {
 		Task task = null;
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT id, name, description, datetime(created_at), datetime(published_at) FROM tasks where id=? LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection, "SELECT " + TASK_COLUMNS + " FROM tasks where id=? LIMIT 1");
 			ps.setInt(1, id);
 
-			ResultSet res = ps.executeQuery();
-
-			while (res.next()) {
-				try {
-					task = new Task(res.getInt("id"), res.getString("name"), res.getString("description"),
-							new java.sql.Date(dateFormat.parse(res.getString("datetime(created_at)")).getTime()),
-							(res.getString("datetime(published_at)")) == null ? null : new java.sql.Date(dateFormat
-									.parse(res.getString("datetime(published_at)")).getTime()));
-					debug("Fetching task: " + task.toString());
-				} catch (ParseException e) {
-					System.err.println("Error parsing tasks.created_at using task id: " + res.getInt("id"));
-					e.printStackTrace();
+			try (ResultSet res = ps.executeQuery()) {
+
+				while (res.next()) {
+					task = readTask(res);
 				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load task {}", id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return task;
 	}
 
-	public synchronized void setTask(Task task) {
+	private Task readTask(ResultSet res) throws SQLException {
+		Task task = null;
 		try {
-
-			PreparedStatement ps = connection
-					.prepareStatement("UPDATE tasks set name=?, description=?, created_at=?, published_at=? where id=?");
-			ps.setString(1, task.getName());
-			ps.setString(2, task.getDescription());
-			ps.setDate(3, task.getCreatedAt());
-			ps.setDate(4, task.getPublishedAt());
-			ps.setInt(5, task.getId());
-
-			debug("Setting task: " + task.toString());
-
-			ps.executeUpdate();
-
-		} catch (Exception e1) {
-			e1.printStackTrace();
+			task = new Task(res.getInt("id"), res.getString("name"), res.getString("description"),
+					new java.sql.Date(dateFormat.get().parse(res.getString("datetime(created_at)")).getTime()),
+					(res.getString("datetime(published_at)")) == null ? null : new java.sql.Date(dateFormat.get()
+							.parse(res.getString("datetime(published_at)")).getTime()));
+			log.debug("Fetching task: {}", task);
+		} catch (ParseException e) {
+			log.error("Error parsing tasks.created_at using task id: {}", res.getInt("id"), e);
 		}
-
+		return task;
 	}
 
-	public synchronized int insertTask(Task task) {
+	public void setTask(Task task) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("INSERT into tasks (name, description) values (?,?)");
+			PreparedStatement ps = pool.prepare(connection,
+					"UPDATE tasks set name=?, description=?, created_at=?, published_at=? where id=?");
 			ps.setString(1, task.getName());
 			ps.setString(2, task.getDescription());
+			ps.setDate(3, task.getCreatedAt());
+			ps.setDate(4, task.getPublishedAt());
+			ps.setInt(5, task.getId());
 
-			debug("Inserting task: " + task.toString());
+			log.debug("Setting task: {}", task);
 
 			ps.executeUpdate();
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not save task {}", task.getId(), e1);
+		} finally {
+			pool.releaseWrite();
+			changed();
 		}
 
-		return getLatestTask();
 	}
 
-	public synchronized void deleteTask(int id) {
-		try {
-
-			// Clean stories
-			List<Story> stories = getStoriesFromTask(id);
-			for (Story story : stories) {
-				deleteStory(story.getId());
-			}
+	public int insertTask(Task task) {
+		log.debug("Inserting task: {}", task);
 
-			// Clean users
-			List<User> users = getUsersFromTask(id);
-			for (User user : users) {
-				deleteUserFromTask(id, user.getId());
-			}
+		return insert(INSERT_TASK, task, TASK_BINDER);
+	}
 
-			PreparedStatement ps = connection.prepareStatement("DELETE FROM tasks where id=?");
-			ps.setInt(1, id);
+	/***
+	 * Inserts the tasks as one batch in a single transaction.
+	 * 
+	 * @param tasks
+	 * @return The ids of the new tasks, in the order they were given.
+	 */
+	public int[] insertTasks(List<Task> tasks) {
+		log.debug("Inserting {} tasks", tasks.size());
 
-			debug("Deleting task id: " + id);
+		return insertBatch(INSERT_TASK, tasks, TASK_BINDER);
+	}
 
-			ps.executeUpdate();
+	/***
+	 * Deletes a task with its votes, stories, team and deck in one
+	 * transaction, using one statement per table.
+	 * 
+	 * @param id
+	 */
+	public void deleteTask(int id) {
+		log.debug("Deleting task id: {}", id);
+
+		executeDeletes(id, "DELETE FROM story_user_estimations WHERE story_id IN (SELECT id FROM stories WHERE task_id=?)",
+				"DELETE FROM stories WHERE task_id=?", "DELETE FROM task_team WHERE task_id=?",
+				"DELETE FROM estimations WHERE task_id=?", "DELETE FROM tasks WHERE id=?");
+
+		// The ids of the task's stories and cards are not known here
+		stories.invalidateAll();
+		estimates.invalidateAll();
+		invalidateDeck(id);
+	}
 
-		} catch (Exception e1) {
-			e1.printStackTrace();
+	/***
+	 * @param id
+	 * @return The story, from the cache if possible. Must not be modified.
+	 */
+	public Story getStory(int id) {
+		Story story = stories.get(id);
+		if (story == null) {
+			long generation = stories.generation();
+			story = loadStory(id);
+			stories.put(id, story, generation);
 		}
-
+		return story;
 	}
 
-	public synchronized Story getStory(int id) {
+	private Story loadStory(int id) {
 		Story story = null;
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT id, task_id, name, description, consensus, iteration FROM stories where id=? LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT id, task_id, name, description, consensus, iteration FROM stories where id=? LIMIT 1");
 			ps.setInt(1, id);
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				story = new Story(res.getInt("id"), res.getInt("task_id"), res.getString("name"),
-						res.getString("description"), res.getInt("consensus"), res.getInt("iteration"));
+				while (res.next()) {
+					story = new Story(res.getInt("id"), res.getInt("task_id"), res.getString("name"),
+							res.getString("description"), res.getInt("consensus"), res.getInt("iteration"));
 
-				debug("Fetching story: " + story.toString());
+					log.debug("Fetching story: {}", story);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load story {}", id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return story;
 	}
 
-	public synchronized void setStory(Story story) {
+	public void setStory(Story story) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("UPDATE stories SET name=?, description=?, consensus=?, iteration=? where id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"UPDATE stories SET name=?, description=?, consensus=?, iteration=? where id=?");
 			ps.setString(1, story.getName());
 			ps.setString(2, story.getDescription());
 			ps.setInt(3, story.getConsensus());
 			ps.setInt(4, story.getIteration());
 			ps.setInt(5, story.getId());
 
-			debug("Setting story: " + story.toString());
+			log.debug("Setting story: {}", story);
 
 			ps.executeUpdate();
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not save story {}", story.getId(), e1);
+		} finally {
+			pool.releaseWrite();
+			changed();
+			stories.invalidate(story.getId());
 		}
 
 	}
 
-	public synchronized int insertStory(Story story) {
-		try {
-
-			PreparedStatement ps = connection
-					.prepareStatement("INSERT into stories (task_id, name, description) values (?,?,?)");
-			ps.setInt(1, story.getTaskId());
-			ps.setString(2, story.getName());
-			ps.setString(3, story.getDescription());
-
-			debug("Insering story: " + story.toString());
-
-			ps.executeUpdate();
+	public int insertStory(Story story) {
+		log.debug("Insering story: {}", story);
 
-		} catch (Exception e1) {
-			e1.printStackTrace();
-		}
-		return getLatestStory();
+		return insert(INSERT_STORY, story, STORY_BINDER);
 	}
 
-	public synchronized void deleteStory(int id) {
-		try {
-
-			HashMap<User, List<Estimate>> storyEstimates = getEstimatesFromStory(id);
-
-			// Delete all story estimates
-			for (List<Estimate> estimates : storyEstimates.values()) {
-				for (Estimate estimate : estimates) {
-					deleteEstimateFromStory(id, estimate.getId());
-				}
-			}
+	/***
+	 * Inserts the stories as one batch in a single transaction.
+	 * 
+	 * @param stories
+	 * @return The ids of the new stories, in the order they were given.
+	 */
+	public int[] insertStories(List<Story> stories) {
+		log.debug("Inserting {} stories", stories.size());
 
-			if (connection.isClosed()) {
-				System.out.println("Connection is still closed..");
-			}
+		return insertBatch(INSERT_STORY, stories, STORY_BINDER);
+	}
 
-			Statement ps = connection.createStatement();
-			if (ps.execute("DELETE FROM stories WHERE id=" + id)) {
-				debug("deleted story " + id + " successfully");
-			}
+	/***
+	 * Deletes a story and all votes on it in one transaction.
+	 * 
+	 * @param id
+	 */
+	public void deleteStory(int id) {
+		log.debug("Deleting story with id: {}", id);
 
-			debug("Deleting story with id: " + id);
+		executeDeletes(id, "DELETE FROM story_user_estimations WHERE story_id=?", "DELETE FROM stories WHERE id=?");
+		stories.invalidate(id);
+	}
 
-		} catch (Exception e1) {
-			e1.printStackTrace();
+	/***
+	 * @param id
+	 * @return The user, from the cache if possible. Must not be modified.
+	 */
+	public User getUser(int id) {
+		User user = users.get(id);
+		if (user == null) {
+			long generation = users.generation();
+			user = loadUser(id);
+			users.put(id, user, generation);
 		}
-
+		return user;
 	}
 
-	public synchronized User getUser(int id) {
+	private User loadUser(int id) {
 		User user = null;
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id, name FROM users where id=? LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection, "SELECT id, name FROM users where id=? LIMIT 1");
 			ps.setInt(1, id);
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				user = new User(res.getInt("id"), res.getString("name"));
-				debug("Fetching user: " + user.toString());
+				while (res.next()) {
+					user = new User(res.getInt("id"), res.getString("name"));
+					log.debug("Fetching user: {}", user);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load user {}", id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return user;
 	}
 
-	public synchronized int insertUser(User user) {
-		try {
+	public int insertUser(User user) {
+		log.debug("Inserting user: {}", user);
 
-			PreparedStatement ps = connection.prepareStatement("INSERT into users (name) values (?)");
-			ps.setString(1, user.getName());
-
-			debug("Inserting user: " + user.toString());
-
-			ps.executeUpdate();
-
-		} catch (Exception e1) {
-			e1.printStackTrace();
-		}
-		return getLatestUser();
+		return insert(INSERT_USER, user, USER_BINDER);
 	}
 
-	public synchronized void deleteUser(int id) {
-		try {
-
-			// Should delete from task_team
-			PreparedStatement ps = connection.prepareStatement("DELETE FROM task_team where user_id=?");
-			ps.setInt(1, id);
-
-			debug("Deleting user from all tasks: " + id);
-
-			ps.executeUpdate();
-
-			// Should delete from story_user_estimations
-			ps = connection.prepareStatement("DELETE FROM story_user_estimations where user_id=?");
-			ps.setInt(1, id);
-
-			debug("Deleting all estimations for user: " + id);
-
-			ps.executeUpdate();
-
-			// Delete user at last
-			ps = connection.prepareStatement("DELETE FROM users where id=?");
-			ps.setInt(1, id);
-
-			debug("Deleting user with id: " + id);
-
-			ps.executeUpdate();
+	/***
+	 * Inserts the users as one batch in a single transaction.
+	 * 
+	 * @param users
+	 * @return The ids of the new users, in the order they were given.
+	 */
+	public int[] insertUsers(List<User> users) {
+		log.debug("Inserting {} users", users.size());
 
-		} catch (Exception e1) {
-			e1.printStackTrace();
-		}
+		return insertBatch(INSERT_USER, users, USER_BINDER);
+	}
 
+	/***
+	 * Deletes a user with their team memberships and votes in one
+	 * transaction.
+	 * 
+	 * @param id
+	 */
+	public void deleteUser(int id) {
+		log.debug("Deleting user with id: {}", id);
+
+		executeDeletes(id, "DELETE FROM task_team where user_id=?",
+				"DELETE FROM story_user_estimations where user_id=?", "DELETE FROM users where id=?");
+		users.invalidate(id);
 	}
 
-	public synchronized void setUser(User user) {
+	public void setUser(User user) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("UPDATE users SET name=? where id=?");
+			PreparedStatement ps = pool.prepare(connection, "UPDATE users SET name=? where id=?");
 			ps.setString(1, user.getName());
 			ps.setInt(2, user.getId());
 
-			debug("Setting user: " + user.toString());
+			log.debug("Setting user: {}", user);
 
 			ps.executeUpdate();
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not save user {}", user.getId(), e1);
+		} finally {
+			pool.releaseWrite();
+			changed();
+			users.invalidate(user.getId());
 		}
 
 	}
 
-	public synchronized Estimate getEstimate(int id) {
+	/***
+	 * @param id
+	 * @return The estimate, from the cache if possible. Must not be modified.
+	 */
+	public Estimate getEstimate(int id) {
+		Estimate estimate = estimates.get(id);
+		if (estimate == null) {
+			long generation = estimates.generation();
+			estimate = loadEstimate(id);
+			estimates.put(id, estimate, generation);
+		}
+		return estimate;
+	}
+
+	private Estimate loadEstimate(int id) {
 		Estimate estimate = null;
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT id, task_id, complexity_symbol, unit, unit_value FROM estimations where id=? LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT id, task_id, complexity_symbol, unit, unit_value FROM estimations where id=? LIMIT 1");
 			ps.setInt(1, id);
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
-						UnitType.values()[res.getInt("unit") - 1], res.getFloat("unit_value"));
-				debug("Fetching estimate: " + estimate.toString());
+				while (res.next()) {
+					estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
+							UnitType.fromCode(res.getInt("unit")), res.getFloat("unit_value"));
+					log.debug("Fetching estimate: {}", estimate);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load estimate {}", id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return estimate;
 	}
 
-	public synchronized void setEstimate(Estimate estimate) {
+	public void setEstimate(Estimate estimate) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("UPDATE estimations SET complexity_symbol=?, unit=?, unit_value=? where id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"UPDATE estimations SET complexity_symbol=?, unit=?, unit_value=? where id=?");
 			ps.setString(1, estimate.getComplexitySymbol());
 			ps.setInt(2, estimate.getUnit().getCode());
 			ps.setFloat(3, estimate.getUnitValue());
 			ps.setInt(4, estimate.getId());
 
-			debug("Setting estimate: " + estimate.toString());
+			log.debug("Setting estimate: {}", estimate);
 
 			ps.executeUpdate();
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not save estimate {}", estimate.getId(), e1);
+		} finally {
+			pool.releaseWrite();
+			changed();
+			estimates.invalidate(estimate.getId());
+			swapCard(estimate);
 		}
 
 	}
 
-	public synchronized int insertEstimate(Estimate estimate) {
-		try {
-
-			PreparedStatement ps = connection
-					.prepareStatement("INSERT into estimations (task_id, complexity_symbol, unit, unit_value) values (?,?,?,?)");
-			ps.setInt(1, estimate.getTaskId());
-			ps.setString(2, estimate.getComplexitySymbol());
-			ps.setInt(3, estimate.getUnit().getCode());
-			ps.setFloat(4, estimate.getUnitValue());
+	/***
+	 * Replaces an edited card in the snapshot of its deck.
+	 */
+	private void swapCard(Estimate estimate) {
+		deckGeneration.incrementAndGet();
+		Estimate card = new Estimate(estimate.getId(), estimate.getTaskId(), estimate.getComplexitySymbol(),
+				estimate.getUnit(), estimate.getUnitValue());
+
+		DeckSnapshot deck = decks.get(card.getTaskId());
+		if (deck != null && !decks.replace(card.getTaskId(), deck, deck.withCard(card))) {
+			// Swapped concurrently, let the next read load it again
+			decks.remove(card.getTaskId());
+		}
+	}
 
-			debug("Inserting estimate: " + estimate.toString());
+	public int insertEstimate(Estimate estimate) {
+		log.debug("Inserting estimate: {}", estimate);
 
-			ps.executeUpdate();
+		int id = insert(INSERT_ESTIMATE, estimate, ESTIMATE_BINDER);
+		invalidateDeck(estimate.getTaskId());
+		return id;
+	}
 
-		} catch (Exception e1) {
-			e1.printStackTrace();
+	/***
+	 * Inserts the estimates as one batch in a single transaction.
+	 * 
+	 * @param estimates
+	 * @return The ids of the new estimates, in the order they were given.
+	 */
+	public int[] insertEstimates(List<Estimate> estimates) {
+		log.debug("Inserting {} estimates", estimates.size());
+
+		int[] ids = insertBatch(INSERT_ESTIMATE, estimates, ESTIMATE_BINDER);
+		for (Estimate estimate : estimates) {
+			invalidateDeck(estimate.getTaskId());
 		}
-		return getLatestEstimate();
+		return ids;
 	}
 
-	public synchronized void deleteEstimate(int id) {
+	public void deleteEstimate(int id) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("DELETE FROM estimations where id=?");
+			PreparedStatement ps = pool.prepare(connection, "DELETE FROM estimations where id=?");
 			ps.setInt(1, id);
 
-			debug("Deleting estimate with id: " + id);
+			log.debug("Deleting estimate with id: {}", id);
 			ps.executeUpdate();
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not delete estimate {}", id, e1);
+		} finally {
+			pool.releaseWrite();
+			changed();
+			estimates.invalidate(id);
+			invalidateDecks();
 		}
 
 	}
 
-	public synchronized List<Story> getStoriesFromTask(int task_id) {
+	public List<Story> getStoriesFromTask(int task_id) {
 		List<Story> stories = new ArrayList<Story>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT id, task_id, name, description, consensus, iteration FROM stories where task_id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT id, task_id, name, description, consensus, iteration FROM stories where task_id=?");
 			ps.setInt(1, task_id);
 
 			Story story = null;
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				story = new Story(res.getInt("id"), res.getInt("task_id"), res.getString("name"),
-						res.getString("description"), res.getInt("consensus"), res.getInt("iteration"));
-				stories.add(story);
-				debug("Fetching story: " + story.toString());
+				while (res.next()) {
+					story = new Story(res.getInt("id"), res.getInt("task_id"), res.getString("name"),
+							res.getString("description"), res.getInt("consensus"), res.getInt("iteration"));
+					stories.add(story);
+					log.debug("Fetching story: {}", story);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load the stories of task {}", task_id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return stories;
 	}
 
-	public synchronized List<User> getUsersFromTask(int task_id) {
+	public List<User> getUsersFromTask(int task_id) {
 		List<User> users = new ArrayList<User>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT users.id, users.name FROM users JOIN task_team ON users.id=task_team.user_id WHERE task_team.task_id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT users.id, users.name FROM users JOIN task_team ON users.id=task_team.user_id WHERE task_team.task_id=?");
 			ps.setInt(1, task_id);
 
 			User user = null;
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				user = new User(res.getInt("id"), res.getString("name"));
-				users.add(user);
-				debug("Fetching user: " + user.toString());
+				while (res.next()) {
+					user = new User(res.getInt("id"), res.getString("name"));
+					users.add(user);
+					log.debug("Fetching user: {}", user);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load the users of task {}", task_id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return users;
 	}
 
-	public synchronized HashMap<User, List<Estimate>> getEstimatesFromStory(int story_id) {
+	public HashMap<User, List<Estimate>> getEstimatesFromStory(int story_id) {
 		HashMap<User, List<Estimate>> storyEstimations = new HashMap<User, List<Estimate>>();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT estimations.id, task_id, complexity_symbol, unit, unit_value FROM estimations where id=? LIMIT 1");
-			ps.setInt(1, story_id);
-
 			List<User> users = getUsersFromTask(getStory(story_id).getTaskId());
 
 			for (User user : users) {
@@ -608,322 +725,747 @@ public class DatabaseManager {
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load the estimates of story {}", story_id, e1);
 		}
 
 		return storyEstimations;
 	}
 
-	public synchronized List<Estimate> getEstimatesFromUser(int user_id) {
+	public List<Estimate> getEstimatesFromUser(int user_id) {
 		List<Estimate> estimations = new ArrayList<Estimate>();
 
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT estimations.id, estimations.task_id, estimations.complexity_symbol, estimations.unit, "
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT estimations.id, estimations.task_id, estimations.complexity_symbol, estimations.unit, "
 							+ "estimations.unit_value FROM estimations join story_user_estimations on story_user_estimations.estimation_id=estimations.id where user_id=?");
 			ps.setInt(1, user_id);
 
 			Estimate estimate = null;
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
-						UnitType.values()[res.getInt("unit")], res.getInt("unit_value"));
-				debug("Fetching estimate: " + estimate.toString());
-				estimations.add(estimate);
+				while (res.next()) {
+					estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
+							UnitType.fromCode(res.getInt("unit")), res.getFloat("unit_value"));
+					log.debug("Fetching estimate: {}", estimate);
+					estimations.add(estimate);
+				}
 			}
 
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not load the estimates of user {}", user_id, e1);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return estimations;
 	}
 
-	public synchronized void deleteEstimateFromStory(int story_id, int estimate_id) {
+	public void deleteEstimateFromStory(int story_id, int estimate_id) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("DELETE FROM story_user_estimations where story_id = ? and estimate_id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"DELETE FROM story_user_estimations where story_id = ? and estimation_id=?");
 			ps.setInt(1, story_id);
 			ps.setInt(2, estimate_id);
 
-			debug(String.format("Deleting estimate [%d] from story [%d]", estimate_id, story_id));
+			log.debug("Deleting estimate [{}] from story [{}]", estimate_id, story_id);
 			ps.executeUpdate();
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not remove estimate {} from story {}", estimate_id, story_id, e);
+		} finally {
+			pool.releaseWrite();
 		}
 	}
 
-	public synchronized void deleteUserFromTask(int task_id, int user_id) {
+	public void deleteUserFromTask(int task_id, int user_id) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("DELETE FROM task_team where task_id = ? and user_id=?");
+			PreparedStatement ps = pool.prepare(connection, "DELETE FROM task_team where task_id = ? and user_id=?");
 			ps.setInt(1, task_id);
 			ps.setInt(2, user_id);
 
-			debug(String.format("Deleting user [%d] from task [%d]", user_id, task_id));
+			log.debug("Deleting user [{}] from task [{}]", user_id, task_id);
 			ps.executeUpdate();
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not remove user {} from task {}", user_id, task_id, e);
+		} finally {
+			pool.releaseWrite();
+			changed();
 		}
 	}
 
-	public synchronized void addUserToTask(int task_id, int user_id) {
+	public void addUserToTask(int task_id, int user_id) {
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("INSERT INTO task_team (user_id, task_id) VALUES (?,?)");
+			PreparedStatement ps = pool.prepare(connection, "INSERT INTO task_team (user_id, task_id) VALUES (?,?)");
 			ps.setInt(1, user_id);
 			ps.setInt(2, task_id);
 
-			debug("Adding user [" + user_id + "] to task [" + task_id + "]");
+			log.debug("Adding user [{}] to task [{}]", user_id, task_id);
 			ps.executeUpdate();
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not add user {} to task {}", user_id, task_id, e);
+		} finally {
+			pool.releaseWrite();
+			changed();
 		}
 	}
 
-	public synchronized void addEstimateToStory(int story_id, int user_id, int estimate_id) {
-		try {
+	public void addEstimateToStory(int story_id, int user_id, int estimate_id) {
+		addEstimateToStory(story_id, user_id, estimate_id, getStory(story_id).getIteration());
+	}
 
-			PreparedStatement ps = connection
-					.prepareStatement("INSERT INTO story_user_estimations (story_id, user_id, estimation_id, story_iteration) VALUES (?,?,?,?)");
-			ps.setInt(1, story_id);
-			ps.setInt(2, user_id);
-			ps.setInt(3, estimate_id);
-			ps.setInt(4, getStory(story_id).getIteration());
+	/***
+	 * Records a vote. A user votes once per iteration of a story, a repeated
+	 * vote is ignored.
+	 *
+	 * @param story_id
+	 * @param user_id
+	 * @param estimate_id
+	 * @param iteration
+	 */
+	public void addEstimateToStory(int story_id, int user_id, int estimate_id, int iteration) {
+		Connection connection = pool.acquireWrite();
+		try {
 
-			debug("Adding estimate [" + estimate_id + "] to story [" + story_id + "] for user [" + user_id + "]");
-			ps.executeUpdate();
+			insertVote(connection, story_id, user_id, estimate_id, iteration);
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not add estimate {} to story {}", estimate_id, story_id, e);
+		} finally {
+			pool.releaseWrite();
 		}
 
 	}
 
-	public synchronized List<Estimate> getEstimationsForTask(int task_id) {
-		List<Estimate> estimations = new ArrayList<Estimate>();
+	/***
+	 * Records a vote and, if it was the last of its iteration, moves the story
+	 * to the next iteration and stores its consensus, in one transaction. A
+	 * story is never left with every vote of an iteration that did not end.
+	 *
+	 * @param story_id
+	 * @param user_id
+	 * @param estimate_id
+	 * @param iteration
+	 *            The iteration the vote was cast in.
+	 * @param lastVote
+	 *            true if the vote ended the iteration.
+	 * @param consensus
+	 *            The estimate everyone agreed on, or -1.
+	 */
+	public void addVote(int story_id, int user_id, int estimate_id, int iteration, boolean lastVote, int consensus) {
+		Connection connection = pool.acquireWrite();
+		boolean transaction = false;
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("SELECT id, task_id, complexity_symbol, unit, unit_value from estimations where task_id = ? ");
-			ps.setInt(1, task_id);
-
-			debug("Fetching estimations for task with id: " + task_id);
+			transaction = beginTransaction(connection);
 
-			Estimate estimate = null;
+			insertVote(connection, story_id, user_id, estimate_id, iteration);
+			if (lastVote) {
+				advanceStory(connection, story_id, iteration + 1, consensus);
+			}
 
-			ResultSet res = ps.executeQuery();
+			commitTransaction(connection, transaction);
 
-			while (res.next()) {
-				estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
-						UnitType.values()[res.getInt("unit") - 1], res.getFloat("unit_value"));
-				debug("Fetching estimate: " + estimate.toString());
-				estimations.add(estimate);
+		} catch (Exception e) {
+			rollbackTransaction(connection, transaction);
+			log.error("Could not save the vote of user {} on story {}", user_id, story_id, e);
+		} finally {
+			endTransaction(connection, transaction);
+			pool.releaseWrite();
+			if (lastVote) {
+				stories.invalidate(story_id);
+			}
+			if (consensus != -1) {
+				changed();
 			}
+		}
+	}
+
+	/***
+	 * Moves a story to an iteration and stores its consensus, in one
+	 * transaction.
+	 *
+	 * @param story_id
+	 * @param iteration
+	 * @param consensus
+	 *            The estimate everyone agreed on, or -1 to keep the story's.
+	 */
+	public void advanceStory(int story_id, int iteration, int consensus) {
+		Connection connection = pool.acquireWrite();
+		boolean transaction = false;
+		try {
+
+			transaction = beginTransaction(connection);
+			advanceStory(connection, story_id, iteration, consensus);
+			commitTransaction(connection, transaction);
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			rollbackTransaction(connection, transaction);
+			log.error("Could not advance story {}", story_id, e);
+		} finally {
+			endTransaction(connection, transaction);
+			pool.releaseWrite();
+			stories.invalidate(story_id);
+			if (consensus != -1) {
+				changed();
+			}
 		}
-
-		return estimations;
 	}
 
-	public synchronized List<Task> getTasks() {
-		List<Task> tasks = new ArrayList<Task>();
-		try {
+	private void insertVote(Connection connection, int story_id, int user_id, int estimate_id, int iteration)
+			throws SQLException {
+		PreparedStatement ps = pool.prepare(connection, INSERT_VOTE);
+		ps.setInt(1, story_id);
+		ps.setInt(2, user_id);
+		ps.setInt(3, estimate_id);
+		ps.setInt(4, iteration);
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id from tasks ORDER BY id ASC");
+		log.debug("Adding estimate [{}] to story [{}] for user [{}]", estimate_id, story_id, user_id);
+		ps.executeUpdate();
+	}
 
-			debug("Getting all tasks");
+	private void advanceStory(Connection connection, int story_id, int iteration, int consensus)
+			throws SQLException {
+		PreparedStatement ps = pool.prepare(connection, SET_ITERATION);
+		ps.setInt(1, iteration);
+		ps.setInt(2, story_id);
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				tasks.add(getTask(res.getInt("id")));
-			}
+		log.debug("Moving story [{}] to iteration [{}]", story_id, iteration);
+		ps.executeUpdate();
 
-		} catch (Exception e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		if (consensus != -1) {
+			ps = pool.prepare(connection, SET_CONSENSUS);
+			ps.setInt(1, consensus);
+			ps.setInt(2, story_id);
 
+			log.debug("Setting consensus [{}] for story [{}]", consensus, story_id);
+			ps.executeUpdate();
 		}
-
-		return tasks;
 	}
 
-	private int getLatestTask() {
-		int id = Integer.MIN_VALUE;
-		try {
-
-			PreparedStatement ps = connection.prepareStatement("SELECT id from tasks ORDER BY id DESC LIMIT 1");
+	/***
+	 * @param task_id
+	 * @return The task's cards as a new list of new estimates, which may be
+	 *         modified and passed to {@link #setEstimate(Estimate)}.
+	 */
+	public List<Estimate> getEstimationsForTask(int task_id) {
+		List<Estimate> estimations = new ArrayList<Estimate>();
+		for (Estimate card : getDeck(task_id).getCards()) {
+			estimations.add(new Estimate(card.getId(), card.getTaskId(), card.getComplexitySymbol(), card.getUnit(),
+					card.getUnitValue()));
+		}
+		return estimations;
+	}
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				debug(String.format("Getting newest task [%d]", res.getInt("id")));
-				id = res.getInt("id");
+	/***
+	 * @param task_id
+	 * @return The current snapshot of the task's deck, read from the database
+	 *         only when the deck is not in memory.
+	 */
+	public DeckSnapshot getDeck(int task_id) {
+		DeckSnapshot deck = decks.get(task_id);
+		if (deck == null) {
+			long generation = deckGeneration.get();
+			deck = new DeckSnapshot(task_id, loadDeck(task_id));
+			// A deck edited while it was being read is not kept
+			if (generation == deckGeneration.get()) {
+				DeckSnapshot current = decks.putIfAbsent(task_id, deck);
+				if (current != null) {
+					deck = current;
+				}
 			}
-
-		} catch (Exception e) {
-			e.printStackTrace();
 		}
+		return deck;
+	}
 
-		return id;
+	private void invalidateDecks() {
+		deckGeneration.incrementAndGet();
+		decks.clear();
 	}
 
-	private int getLatestStory() {
-		int id = Integer.MIN_VALUE;
+	private void invalidateDeck(int task_id) {
+		deckGeneration.incrementAndGet();
+		decks.remove(task_id);
+	}
+
+	private List<Estimate> loadDeck(int task_id) {
+		List<Estimate> estimations = new ArrayList<Estimate>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id from stories ORDER BY id DESC LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection,
+					"SELECT id, task_id, complexity_symbol, unit, unit_value from estimations where task_id = ? order by id");
+			ps.setInt(1, task_id);
+
+			log.debug("Fetching estimations for task with id: {}", task_id);
+
+			Estimate estimate = null;
+
+			try (ResultSet res = ps.executeQuery()) {
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				debug(String.format("Getting newest story [%d]", res.getInt("id")));
-				id = res.getInt("id");
+				while (res.next()) {
+					estimate = new Estimate(res.getInt("id"), res.getInt("task_id"), res.getString("complexity_symbol"),
+							UnitType.fromCode(res.getInt("unit")), res.getFloat("unit_value"));
+					log.debug("Fetching estimate: {}", estimate);
+					estimations.add(estimate);
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load the deck of task {}", task_id, e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
-		return id;
+		return estimations;
 	}
 
-	private int getLatestUser() {
-		int id = Integer.MIN_VALUE;
+	public List<Task> getTasks() {
+		return getTasks(0, Integer.MAX_VALUE);
+	}
+
+	/***
+	 * Fetches one page of tasks in id order. Pages are addressed by the last
+	 * id of the previous page, so every page costs the same no matter how
+	 * many tasks came before it.
+	 * 
+	 * @param after_id
+	 *            The id of the last task of the previous page, 0 for the
+	 *            first page.
+	 * @param limit
+	 * @return At most limit tasks with an id greater than after_id.
+	 */
+	public List<Task> getTasks(int after_id, int limit) {
+		List<Task> tasks = new ArrayList<Task>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id from users ORDER BY id DESC LIMIT 1");
+			PreparedStatement ps = pool.prepare(connection, "SELECT " + TASK_COLUMNS
+					+ " FROM tasks WHERE id>? ORDER BY id ASC LIMIT ?");
+			ps.setInt(1, after_id);
+			ps.setInt(2, limit);
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				debug(String.format("Getting newest user [%d]", res.getInt("id")));
-				id = res.getInt("id");
+			log.debug("Getting {} tasks after task [{}]", limit, after_id);
+
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next()) {
+					tasks.add(readTask(res));
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load tasks", e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
-		return id;
+		return tasks;
 	}
 
-	private int getLatestEstimate() {
-		int id = Integer.MIN_VALUE;
-		try {
+	/***
+	 * Fetches one page of tasks like {@link #getTasks(int, int)} and fills in
+	 * the team of each task, using two queries for the whole page.
+	 * 
+	 * @param after_id
+	 * @param limit
+	 * @return The tasks with their users set.
+	 */
+	public List<Task> getTasksWithUsers(int after_id, int limit) {
+		List<Task> tasks = getTasks(after_id, limit);
+		if (tasks.isEmpty()) {
+			return tasks;
+		}
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id from estimations ORDER BY id DESC LIMIT 1");
+		HashMap<Integer, Task> byId = new HashMap<Integer, Task>();
+		for (Task task : tasks) {
+			task.setUsers(new ArrayList<User>());
+			byId.put(task.getId(), task);
+		}
+
+		Connection connection = pool.acquireRead();
+		try {
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				debug(String.format("Getting newest estimate [%d]", res.getInt("id")));
-				id = res.getInt("id");
+			// A page is a contiguous id range, so one statement serves every
+			// page size
+			PreparedStatement ps = pool.prepare(connection, "SELECT task_team.task_id, users.id, users.name "
+					+ "FROM users JOIN task_team ON users.id=task_team.user_id "
+					+ "WHERE task_team.task_id BETWEEN ? AND ? ORDER BY task_team.id ASC");
+			ps.setInt(1, tasks.get(0).getId());
+			ps.setInt(2, tasks.get(tasks.size() - 1).getId());
+
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next()) {
+					Task task = byId.get(res.getInt("task_id"));
+					if (task != null) {
+						task.getUsers().add(new User(res.getInt("id"), res.getString("name")));
+					}
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load tasks with their users", e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
-		return id;
+		return tasks;
 	}
 
-	public synchronized int getLatestIteration(int story_id) {
+	public int getLatestIteration(int story_id) {
 		int iteration = -1;
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("SELECT iteration FROM stories WHERE id=?");
+			PreparedStatement ps = pool.prepare(connection, "SELECT iteration FROM stories WHERE id=?");
 			ps.setInt(1, story_id);
 
-			debug(String.format("Fetching latest iteration for story [%d]", story_id));
+			log.debug("Fetching latest iteration for story [{}]", story_id);
 
-			ResultSet res = ps.executeQuery();
+			try (ResultSet res = ps.executeQuery()) {
 
-			while (res.next()) {
-				iteration = res.getInt("iteration");
+				while (res.next()) {
+					iteration = res.getInt("iteration");
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load the latest iteration of story {}", story_id, e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return iteration;
 	}
 
-	public synchronized void increaseStoryIteration(int story_id) {
+	public void increaseStoryIteration(int story_id) {
 
+		Connection connection = pool.acquireWrite();
 		try {
 
-			PreparedStatement ps = connection
-					.prepareStatement("UPDATE stories SET iteration=((select iteration from stories where id=? order by iteration desc limit 1)+1) where id=?");
+			PreparedStatement ps = pool.prepare(connection,
+					"UPDATE stories SET iteration=((select iteration from stories where id=? order by iteration desc limit 1)+1) where id=?");
 			ps.setInt(1, story_id);
 			ps.setInt(2, story_id);
 
-			debug(String.format("Increasing iteration for story [%d]", story_id));
+			log.debug("Increasing iteration for story [{}]", story_id);
 
 			ps.executeUpdate();
 		} catch (Exception e1) {
-			e1.printStackTrace();
+			log.error("Could not increase the iteration of story {}", story_id, e1);
+		} finally {
+			pool.releaseWrite();
+			stories.invalidate(story_id);
 		}
 	}
 
-	public synchronized List<UserEstimate> getUserEstimatesForStoryWithIteration(int story_id, int iteration) {
+	public List<UserEstimate> getUserEstimatesForStoryWithIteration(int story_id, int iteration) {
 		List<UserEstimate> estimations = new ArrayList<UserEstimate>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("select e.id as 'estimate_id', sue.user_id as 'user_id'"
-					+ "from story_user_estimations sue " + "inner join estimations e on sue.estimation_id=e.id "
+			PreparedStatement ps = pool.prepare(connection, "select " + USER_ESTIMATE_COLUMNS
 					+ "where sue.story_id=? and sue.story_iteration=? " + "order by sue.user_id asc");
 
 			ps.setInt(1, story_id);
 			ps.setInt(2, iteration);
 
-			debug(String.format("Fetching user estimates from story [%d] with iteration [%d]", story_id, iteration));
+			log.debug("Fetching user estimates from story [{}] with iteration [{}]", story_id, iteration);
 
-			Estimate estimate = null;
-			User user = null;
+			try (ResultSet res = ps.executeQuery()) {
 
-			ResultSet res = ps.executeQuery();
+				while (res.next()) {
+					estimations.add(readUserEstimate(res));
+				}
+			}
 
-			while (res.next()) {
-				estimate = getEstimate(res.getInt("estimate_id"));
-				user = getUser(res.getInt("user_id"));
+		} catch (Exception e) {
+			log.error("Could not load the votes of story {} in iteration {}", story_id, iteration, e);
+		} finally {
+			pool.releaseRead(connection);
+		}
+		return estimations;
+	}
+
+	/***
+	 * Fetches the estimates of the current and the previous iteration of every
+	 * story in a task, with users and estimates joined in the same query.
+	 * 
+	 * @param task_id
+	 * @return The estimates keyed by story id, ordered by user id.
+	 */
+	public HashMap<Integer, List<UserEstimate>> getRecentUserEstimatesForTask(int task_id) {
+		log.debug("Fetching recent user estimates for task [{}]", task_id);
+
+		return getUserEstimatesForTask("select " + USER_ESTIMATE_COLUMNS
+				+ "inner join stories s on sue.story_id=s.id "
+				+ "where s.task_id=? and sue.story_iteration>=s.iteration-1 "
+				+ "order by sue.story_id asc, sue.story_iteration asc, sue.user_id asc", task_id);
+	}
+
+	/***
+	 * Fetches the estimates of every iteration of every story in a task, with
+	 * users and estimates joined in the same query.
+	 * 
+	 * @param task_id
+	 * @return The estimates keyed by story id, ordered by iteration and user
+	 *         id.
+	 */
+	public HashMap<Integer, List<UserEstimate>> getAllUserEstimatesForTask(int task_id) {
+		log.debug("Fetching all user estimates for task [{}]", task_id);
+
+		return getUserEstimatesForTask("select " + USER_ESTIMATE_COLUMNS
+				+ "inner join stories s on sue.story_id=s.id " + "where s.task_id=? "
+				+ "order by sue.story_id asc, sue.story_iteration asc, sue.user_id asc", task_id);
+	}
+
+	private HashMap<Integer, List<UserEstimate>> getUserEstimatesForTask(String sql, int task_id) {
+		HashMap<Integer, List<UserEstimate>> estimations = new HashMap<Integer, List<UserEstimate>>();
+		Connection connection = pool.acquireRead();
+		try {
+
+			PreparedStatement ps = pool.prepare(connection, sql);
+			ps.setInt(1, task_id);
+
+			try (ResultSet res = ps.executeQuery()) {
 
-				estimations.add(new UserEstimate(user, estimate));
+				while (res.next()) {
+					int story_id = res.getInt("story_id");
+					List<UserEstimate> storyEstimations = estimations.get(story_id);
+					if (storyEstimations == null) {
+						storyEstimations = new ArrayList<UserEstimate>();
+						estimations.put(story_id, storyEstimations);
+					}
+					storyEstimations.add(readUserEstimate(res));
+				}
 			}
 
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load the votes of task {}", task_id, e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 		return estimations;
 	}
 
-	public synchronized List<UserEstimate> getLatestEstimatesForStory(int story_id) {
+	private UserEstimate readUserEstimate(ResultSet res) throws SQLException {
+		Estimate estimate = new Estimate(res.getInt("estimate_id"), res.getInt("task_id"),
+				res.getString("complexity_symbol"), UnitType.fromCode(res.getInt("unit")),
+				res.getFloat("unit_value"));
+		User user = new User(res.getInt("user_id"), res.getString("user_name"));
+
+		return new UserEstimate(user, estimate, res.getInt("story_iteration"));
+	}
+
+	public List<UserEstimate> getLatestEstimatesForStory(int story_id) {
 		return getUserEstimatesForStoryWithIteration(story_id, getLatestIteration(story_id));
 	}
 
-	public synchronized List<User> getUsers() {
+	public List<User> getUsers() {
 		List<User> users = new ArrayList<User>();
+		Connection connection = pool.acquireRead();
 		try {
 
-			PreparedStatement ps = connection.prepareStatement("SELECT id from users ORDER BY id ASC");
+			PreparedStatement ps = pool.prepare(connection, "SELECT id from users ORDER BY id ASC");
 
-			debug("Getting all users");
+			log.debug("Getting all users");
 
-			ResultSet res = ps.executeQuery();
-			while (res.next()) {
-				users.add(getUser(res.getInt("id")));
+			try (ResultSet res = ps.executeQuery()) {
+				while (res.next()) {
+					users.add(getUser(res.getInt("id")));
+				}
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			log.error("Could not load users", e);
+		} finally {
+			pool.releaseRead(connection);
 		}
 
 		return users;
 	}
 
+	private <T> int insert(String sql, T item, Binder<T> binder) {
+		int id = Integer.MIN_VALUE;
+		Connection connection = pool.acquireWrite();
+		try {
+
+			PreparedStatement ps = pool.prepare(connection, sql);
+			binder.bind(ps, item);
+			ps.executeUpdate();
+
+			id = generatedKey(ps);
+
+		} catch (Exception e) {
+			log.error("Could not insert row", e);
+		} finally {
+			pool.releaseWrite();
+			changed();
+		}
+		return id;
+	}
+
+	private <T> int[] insertBatch(String sql, List<T> items, Binder<T> binder) {
+		int[] ids = new int[items.size()];
+		if (items.isEmpty()) {
+			return ids;
+		}
+
+		Connection connection = pool.acquireWrite();
+		boolean transaction = false;
+		try {
+
+			transaction = beginTransaction(connection);
+
+			PreparedStatement ps = pool.prepare(connection, sql);
+			for (T item : items) {
+				binder.bind(ps, item);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+
+			// Only one writer and a single transaction, so the AUTOINCREMENT
+			// ids of the batch are consecutive and end at the last one
+			int last = generatedKey(ps);
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = last - ids.length + 1 + i;
+			}
+
+			commitTransaction(connection, transaction);
+
+		} catch (Exception e) {
+			rollbackTransaction(connection, transaction);
+			log.error("Could not insert rows", e);
+			Arrays.fill(ids, Integer.MIN_VALUE);
+		} finally {
+			endTransaction(connection, transaction);
+			pool.releaseWrite();
+			changed();
+		}
+		return ids;
+	}
+
+	private int generatedKey(PreparedStatement ps) throws SQLException {
+		try (ResultSet keys = ps.getGeneratedKeys()) {
+			return keys.next() ? keys.getInt(1) : Integer.MIN_VALUE;
+		}
+	}
+
+	/***
+	 * Runs delete statements that all take the same id as their only
+	 * parameter, in order and in a single transaction.
+	 * 
+	 * @param id
+	 * @param deletes
+	 */
+	private void executeDeletes(int id, String... deletes) {
+		Connection connection = pool.acquireWrite();
+		boolean transaction = false;
+		try {
+
+			transaction = beginTransaction(connection);
+
+			for (String sql : deletes) {
+				PreparedStatement ps = pool.prepare(connection, sql);
+				ps.setInt(1, id);
+				ps.executeUpdate();
+			}
+
+			commitTransaction(connection, transaction);
+
+		} catch (Exception e) {
+			rollbackTransaction(connection, transaction);
+			log.error("Could not delete rows for id {}", id, e);
+		} finally {
+			endTransaction(connection, transaction);
+			pool.releaseWrite();
+			changed();
+		}
+	}
+
+	/***
+	 * Starts a transaction on the writer unless one is already running, in
+	 * which case the caller's transaction is joined.
+	 * 
+	 * @return true if this call started the transaction and has to end it.
+	 */
+	private boolean beginTransaction(Connection connection) throws SQLException {
+		if (!connection.getAutoCommit()) {
+			return false;
+		}
+		connection.setAutoCommit(false);
+		return true;
+	}
+
+	private void commitTransaction(Connection connection, boolean transaction) throws SQLException {
+		if (transaction) {
+			connection.commit();
+		}
+	}
+
+	private void rollbackTransaction(Connection connection, boolean transaction) {
+		if (transaction) {
+			try {
+				connection.rollback();
+			} catch (SQLException e) {
+				log.warn("Could not roll back transaction", e);
+			}
+		}
+	}
+
+	private void endTransaction(Connection connection, boolean transaction) {
+		if (transaction) {
+			try {
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				log.warn("Could not end transaction", e);
+			}
+		}
+	}
+
+	/***
+	 * @return A number that changes whenever tasks, teams, decks, stories or
+	 *         their consensus change. Votes and iterations do not change it.
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	private void changed() {
+		version.incrementAndGet();
+	}
+
+	/***
+	 * @return Hit rate, evictions and estimated memory of the entity caches.
+	 */
+	public Map<String, Object> getEntityCacheStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.putAll(users.getStats());
+		stats.putAll(estimates.getStats());
+		stats.putAll(stories.getStats());
+		return stats;
+	}
+
+	/***
+	 * @return How many times a query reused an already prepared statement.
+	 */
+	public long getStatementCacheHits() {
+		return pool.getStatementHits();
+	}
+
+	/***
+	 * @return How many times a query had to be prepared by SQLite.
+	 */
+	public long getStatementCacheMisses() {
+		return pool.getStatementMisses();
+	}
+
 }
@@ -0,0 +1,85 @@
+package poker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import poker.entities.Estimate;
+
+/***
+ * The cards of one task at a point in time. A snapshot never changes: when a
+ * card is edited a new snapshot replaces it, so readers can share it without
+ * locking.
+ *
+ * The cards themselves are shared too and must not be modified.
+ */
+public final class DeckSnapshot {
+	private final int					task_id;
+	private final Estimate[]			cards;
+	private final Map<Integer, Integer>	positions;
+	private final List<Estimate>		list;
+
+	public DeckSnapshot(int task_id, List<Estimate> cards) {
+		this(task_id, cards.toArray(new Estimate[cards.size()]));
+	}
+
+	private DeckSnapshot(int task_id, Estimate[] cards) {
+		this.task_id = task_id;
+		this.cards = cards;
+		this.positions = new HashMap<Integer, Integer>(cards.length * 2);
+		for (int i = 0; i < cards.length; i++) {
+			positions.put(cards[i].getId(), i);
+		}
+		this.list = Collections.unmodifiableList(Arrays.asList(cards));
+	}
+
+	public int getTaskId() {
+		return task_id;
+	}
+
+	public int size() {
+		return cards.length;
+	}
+
+	/***
+	 * @param position
+	 * @return The card at the position, in the order the deck was created.
+	 */
+	public Estimate get(int position) {
+		return cards[position];
+	}
+
+	/***
+	 * @param estimate_id
+	 * @return The card with the id, or null if it is not in this deck.
+	 */
+	public Estimate getById(int estimate_id) {
+		Integer position = positions.get(estimate_id);
+		return position == null ? null : cards[position];
+	}
+
+	/***
+	 * @return The cards in deck order, as an unmodifiable list.
+	 */
+	public List<Estimate> getCards() {
+		return list;
+	}
+
+	/***
+	 * @param card
+	 * @return A snapshot with the card of the same id replaced, or this
+	 *         snapshot if the card is not part of it.
+	 */
+	public DeckSnapshot withCard(Estimate card) {
+		Integer position = positions.get(card.getId());
+		if (position == null) {
+			return this;
+		}
+
+		Estimate[] changed = cards.clone();
+		changed[position] = card;
+		return new DeckSnapshot(task_id, changed);
+	}
+}
@@ -0,0 +1,193 @@
+package poker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/***
+ * A bounded cache of entities by id, sized by the estimated memory of its
+ * entries rather than their count.
+ *
+ * When full, a few random entries are sampled and the least frequently used
+ * one is evicted. Use counts are halved as the cache ages so entities that
+ * were popular once do not stay forever.
+ *
+ * Cached entities are shared: callers must not modify them, and every write
+ * to an entity must {@link #invalidate(int)} it.
+ */
+public class EntityCache<V> {
+	private static final int	SAMPLE_SIZE		= 5;
+	private static final int	AGING_FACTOR	= 10;
+
+	/***
+	 * Estimates the memory used by an entity, in bytes.
+	 */
+	public interface Weigher<V> {
+		int weigh(V value);
+	}
+
+	private final String				name;
+	private final long					maxWeight;
+	private final Weigher<V>			weigher;
+	private final Map<Integer, Entry<V>>	entries	= new HashMap<Integer, Entry<V>>();
+	private final List<Entry<V>>		sample		= new ArrayList<Entry<V>>();
+	private final Random				random		= new Random();
+
+	private long	weight;
+	private long	generation;
+	private long	accesses;
+	private long	hits;
+	private long	misses;
+	private long	evictions;
+
+	/***
+	 * @param name
+	 *            Shown in the statistics.
+	 * @param maxWeight
+	 *            The estimated number of bytes the entries may use.
+	 * @param weigher
+	 */
+	public EntityCache(String name, long maxWeight, Weigher<V> weigher) {
+		this.name = name;
+		this.maxWeight = maxWeight;
+		this.weigher = weigher;
+	}
+
+	/***
+	 * @param id
+	 * @return The cached entity, or null on a miss.
+	 */
+	public synchronized V get(int id) {
+		Entry<V> entry = entries.get(id);
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		entry.frequency++;
+		if (++accesses > AGING_FACTOR * entries.size()) {
+			age();
+		}
+		return entry.value;
+	}
+
+	/***
+	 * @return A token to pass to {@link #put(int, Object, long)} after
+	 *         loading an entity, so a load that raced with a write is not
+	 *         cached.
+	 */
+	public synchronized long generation() {
+		return generation;
+	}
+
+	/***
+	 * Caches an entity loaded from the database, unless it was invalidated
+	 * while it was being loaded.
+	 *
+	 * @param id
+	 * @param value
+	 * @param generation
+	 *            The {@link #generation()} taken before loading.
+	 */
+	public synchronized void put(int id, V value, long generation) {
+		if (value == null || generation != this.generation) {
+			return;
+		}
+
+		int size = weigher.weigh(value);
+		if (size > maxWeight) {
+			return;
+		}
+
+		remove(id);
+		while (weight + size > maxWeight && !sample.isEmpty()) {
+			evict();
+		}
+
+		Entry<V> entry = new Entry<V>(id, value, size, sample.size());
+		entries.put(id, entry);
+		sample.add(entry);
+		weight += size;
+	}
+
+	public synchronized void invalidate(int id) {
+		generation++;
+		remove(id);
+	}
+
+	public synchronized void invalidateAll() {
+		generation++;
+		entries.clear();
+		sample.clear();
+		weight = 0;
+	}
+
+	/***
+	 * @return A snapshot of the statistics, keyed by name_statistic.
+	 */
+	public synchronized Map<String, Object> getStats() {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		long requests = hits + misses;
+		stats.put(name + "_hits", hits);
+		stats.put(name + "_misses", misses);
+		stats.put(name + "_hit_rate", requests == 0 ? 0.0 : (double) hits / requests);
+		stats.put(name + "_evictions", evictions);
+		stats.put(name + "_size", entries.size());
+		stats.put(name + "_bytes", weight);
+		stats.put(name + "_max_bytes", maxWeight);
+		return stats;
+	}
+
+	private void evict() {
+		Entry<V> victim = null;
+		for (int i = 0; i < SAMPLE_SIZE; i++) {
+			Entry<V> candidate = sample.get(random.nextInt(sample.size()));
+			if (victim == null || candidate.frequency < victim.frequency) {
+				victim = candidate;
+			}
+		}
+
+		remove(victim.id);
+		evictions++;
+	}
+
+	private void remove(int id) {
+		Entry<V> entry = entries.remove(id);
+		if (entry == null) {
+			return;
+		}
+
+		// Move the last entry into the hole so sampling stays O(1)
+		Entry<V> last = sample.remove(sample.size() - 1);
+		if (last != entry) {
+			last.index = entry.index;
+			sample.set(last.index, last);
+		}
+		weight -= entry.size;
+	}
+
+	private void age() {
+		for (Entry<V> entry : sample) {
+			entry.frequency >>= 1;
+		}
+		accesses = 0;
+	}
+
+	private static class Entry<V> {
+		private final int	id;
+		private final V		value;
+		private final int	size;
+		private int			index;
+		private int			frequency;
+
+		Entry(int id, V value, int size, int index) {
+			this.id = id;
+			this.value = value;
+			this.size = size;
+			this.index = index;
+		}
+	}
+}
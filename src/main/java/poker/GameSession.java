@@ -0,0 +1,349 @@
+package poker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import poker.entities.Estimate;
+import poker.entities.Story;
+import poker.entities.User;
+import poker.entities.UserEstimate;
+
+/***
+ * The live state of one task during a game of poker: its team, deck, stories
+ * and the votes of the current and previous iteration of each story. This is
+ * the authoritative copy while the session is loaded, every change is
+ * persisted through {@link GameSessions#writeBehind(Runnable)}.
+ *
+ * Each story keeps a {@link StoryTally}, so consensus is decided by the vote
+ * that ends an iteration and reading the state never writes. Every change to
+ * a story gives it a new version, taken from a counter shared by every
+ * session that only grows while the server runs.
+ *
+ * All methods lock the session, callers that need a consistent view over
+ * several calls should synchronize on the session as well. A session closed
+ * by {@link GameSessions} takes no more votes, the writes it queued before
+ * are still made.
+ */
+public class GameSession {
+	// How many vote keys each session remembers to recognize retries
+	private static final int							VOTE_KEYS	= Integer.getInteger("poker.vote.keys", 1024);
+	// Starts at the time the server started, so versions handed out before a
+	// restart are most likely lower, and a reloaded session never hands out
+	// a version a client has already seen
+	private static final AtomicLong						VERSIONS	= new AtomicLong(System.currentTimeMillis());
+
+	/***
+	 * What became of a vote.
+	 */
+	public enum VoteResult {
+		// The story, user or estimate is not part of the task, or the
+		// session was closed
+		INVALID,
+		// The user already voted in this iteration, or the vote was a retry
+		DUPLICATE,
+		// The vote was counted
+		COUNTED
+	}
+
+	private final GameSessions							sessions;
+	private final int									task_id;
+	private final List<User>							users;
+	private final DeckSnapshot							deck;
+	private final Map<Integer, Story>					stories;
+	private final Map<Integer, List<UserEstimate>>		votes;
+	private final Map<Integer, StoryTally>				tallies;
+	private final Map<Integer, Long>					versions;
+	private final Map<Integer, StoryState>				states;
+	private final Map<String, Boolean>					voteKeys;
+	private long										version;
+	private volatile long								lastAccess;
+	private volatile boolean							closed;
+	// When each user last had the game page open, written without the lock
+	private final ConcurrentHashMap<Integer, Long>		seen		= new ConcurrentHashMap<Integer, Long>();
+
+	GameSession(GameSessions sessions, int task_id, List<User> users, DeckSnapshot deck, List<Story> stories,
+			Map<Integer, List<UserEstimate>> votes) {
+		this.sessions = sessions;
+		this.task_id = task_id;
+		this.users = Collections.unmodifiableList(new ArrayList<User>(users));
+		this.deck = deck;
+		this.stories = new LinkedHashMap<Integer, Story>();
+		this.votes = new HashMap<Integer, List<UserEstimate>>();
+		this.tallies = new HashMap<Integer, StoryTally>();
+		this.versions = new HashMap<Integer, Long>();
+		this.states = new HashMap<Integer, StoryState>();
+		this.voteKeys = new LinkedHashMap<String, Boolean>() {
+			private static final long	serialVersionUID	= 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > VOTE_KEYS;
+			}
+		};
+		this.version = VERSIONS.incrementAndGet();
+		for (Story story : stories) {
+			this.stories.put(story.getId(), story);
+			this.versions.put(story.getId(), version);
+			List<UserEstimate> storyVotes = votes.get(story.getId());
+			this.votes.put(story.getId(),
+					storyVotes == null ? new ArrayList<UserEstimate>() : new ArrayList<UserEstimate>(storyVotes));
+		}
+
+		for (Story story : stories) {
+			int iteration = story.getIteration();
+			StoryTally tally = StoryTally.restore(iteration, iteration > 0 ? getVotes(story.getId(), iteration - 1)
+					: new ArrayList<UserEstimate>(), getVotes(story.getId(), iteration), this.users.size());
+			tallies.put(story.getId(), tally);
+
+			// Stories decided before consensus was stored on the last vote
+			final int consensus = tally.getConsensus() != StoryTally.NO_CONSENSUS
+					&& story.getConsensus() == StoryTally.NO_CONSENSUS ? tally.getConsensus()
+					: StoryTally.NO_CONSENSUS;
+			if (consensus != StoryTally.NO_CONSENSUS) {
+				story.setConsensus(consensus);
+			}
+
+			// The restored votes ended their iteration, as when the team got
+			// smaller or the iteration was not stored with the last vote
+			final int next = tally.getIteration();
+			if (next != iteration) {
+				story.setIteration(next);
+				prune(this.votes.get(story.getId()), iteration);
+			}
+
+			if (consensus != StoryTally.NO_CONSENSUS || next != iteration) {
+				final int story_id = story.getId();
+				GameSession.this.sessions.writeBehind(new Runnable() {
+					@Override
+					public void run() {
+						GameSession.this.sessions.getDatabaseManager().advanceStory(story_id, next, consensus);
+					}
+				});
+			}
+		}
+		touch();
+	}
+
+	public int getTaskId() {
+		return task_id;
+	}
+
+	public List<User> getUsers() {
+		return users;
+	}
+
+	public DeckSnapshot getDeck() {
+		return deck;
+	}
+
+	public synchronized List<Story> getStories() {
+		return new ArrayList<Story>(stories.values());
+	}
+
+	public synchronized Story getStory(int story_id) {
+		return stories.get(story_id);
+	}
+
+	/***
+	 * @param story_id
+	 * @param iteration
+	 * @return A copy of the votes cast on the story during the given
+	 *         iteration, ordered by user id.
+	 */
+	public synchronized List<UserEstimate> getVotes(int story_id, int iteration) {
+		List<UserEstimate> result = new ArrayList<UserEstimate>();
+		List<UserEstimate> storyVotes = votes.get(story_id);
+		if (storyVotes == null) {
+			return result;
+		}
+
+		for (UserEstimate ue : storyVotes) {
+			if (ue.getIteration() == iteration) {
+				result.add(ue);
+			}
+		}
+		return result;
+	}
+
+	/***
+	 * @return The version of the task's state, which is the version of its
+	 *         latest changed story.
+	 */
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/***
+	 * @param story_id
+	 * @return The version of the story's state, or -1 if the story is not
+	 *         part of this task.
+	 */
+	public synchronized long getStoryVersion(int story_id) {
+		Long storyVersion = versions.get(story_id);
+		return storyVersion == null ? -1 : storyVersion;
+	}
+
+	/***
+	 * @param story_id
+	 * @return The running tally of the story's votes, or null if the story is
+	 *         not part of this task. Only to be read while holding the session.
+	 */
+	synchronized StoryTally getTally(int story_id) {
+		return tallies.get(story_id);
+	}
+
+	/***
+	 * @param story_id
+	 * @return The state built for the story's current version, or null.
+	 */
+	synchronized StoryState getCachedState(int story_id) {
+		return states.get(story_id);
+	}
+
+	synchronized void cacheState(int story_id, StoryState state) {
+		states.put(story_id, state);
+	}
+
+	/***
+	 * Records a vote in memory and queues it for the database. When it is the
+	 * last vote of the iteration, the iteration is decided: the story moves on
+	 * to the next iteration and, if everyone agreed, gets its consensus.
+	 * A second vote by the same user in an iteration is ignored, and so is a
+	 * vote sent again with the same key, even after the iteration moved on.
+	 *
+	 * @param story_id
+	 * @param user_id
+	 * @param estimate_id
+	 * @param key
+	 *            Chosen by the client for each vote and sent again with its
+	 *            retries, may be null.
+	 * @return What became of the vote.
+	 */
+	public synchronized VoteResult vote(final int story_id, final int user_id, final int estimate_id, String key) {
+		final Story story = stories.get(story_id);
+		User user = findUser(user_id);
+		Estimate estimate = deck.getById(estimate_id);
+		if (closed || story == null || user == null || estimate == null) {
+			return VoteResult.INVALID;
+		}
+
+		touch();
+		StoryTally tally = tallies.get(story_id);
+		if (tally.hasVoted(user_id)) {
+			return VoteResult.DUPLICATE;
+		}
+		if (key != null && voteKeys.put(user_id + ":" + key, Boolean.TRUE) != null) {
+			return VoteResult.DUPLICATE;
+		}
+
+		final int iteration = story.getIteration();
+		List<UserEstimate> storyVotes = votes.get(story_id);
+		storyVotes.add(new UserEstimate(user, estimate, iteration));
+
+		// If everyone has voted, the iteration is decided
+		final boolean lastVote = tally.add(user_id, estimate_id, users.size());
+		final boolean consensus = lastVote && tally.getConsensus() != StoryTally.NO_CONSENSUS
+				&& story.getConsensus() == StoryTally.NO_CONSENSUS;
+		if (lastVote) {
+			story.setIteration(iteration + 1);
+			prune(storyVotes, iteration);
+		}
+		if (consensus) {
+			story.setConsensus(estimate_id);
+		}
+		changed(story_id);
+
+		sessions.writeBehind(new Runnable() {
+			@Override
+			public void run() {
+				sessions.getDatabaseManager().addVote(story_id, user_id, estimate_id, iteration, lastVote,
+						consensus ? estimate_id : StoryTally.NO_CONSENSUS);
+			}
+		});
+
+		return VoteResult.COUNTED;
+	}
+
+	/***
+	 * Stops taking votes. Votes are only counted holding the session, so
+	 * every write of a counted vote is queued before this returns.
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+
+	/***
+	 * @return Whether the session was dropped, a vote it refused is to be
+	 *         cast again on the session loaded next.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	void touch() {
+		lastAccess = System.currentTimeMillis();
+	}
+
+	long getLastAccess() {
+		return lastAccess;
+	}
+
+	/***
+	 * Notes that a user's game page made a request or still listens for
+	 * events.
+	 *
+	 * @param user_id
+	 */
+	public void seen(int user_id) {
+		seen.put(user_id, System.currentTimeMillis());
+	}
+
+	/***
+	 * @param since
+	 *            A time in milliseconds.
+	 * @return How many users had the game page open since that time.
+	 */
+	int countActiveUsers(long since) {
+		int count = 0;
+		for (Iterator<Long> it = seen.values().iterator(); it.hasNext();) {
+			if (it.next() >= since) {
+				count++;
+			} else {
+				it.remove();
+			}
+		}
+		return count;
+	}
+
+	private void changed(int story_id) {
+		version = VERSIONS.incrementAndGet();
+		versions.put(story_id, version);
+		states.remove(story_id);
+	}
+
+	private User findUser(int user_id) {
+		for (User user : users) {
+			if (user.getId() == user_id) {
+				return user;
+			}
+		}
+		return null;
+	}
+
+	// Only the current and the previous iteration are ever read
+	private void prune(List<UserEstimate> storyVotes, int previous) {
+		Iterator<UserEstimate> it = storyVotes.iterator();
+		while (it.hasNext()) {
+			if (it.next().getIteration() < previous) {
+				it.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package poker;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import poker.entities.Story;
+import poker.entities.User;
+import poker.entities.UserEstimate;
+
+/***
+ * Keeps a {@link GameSession} in memory for every task that is being played.
+ * Sessions are loaded lazily on first access and evicted when idle.
+ *
+ * Changes are written to the database on a single thread, in the order they
+ * were made. Sessions are loaded on that same thread, so a reloaded session
+ * always sees every change that was queued before it. Edits of a task's team,
+ * deck or stories run on that thread too, see {@link #edit(int, Runnable)}.
+ *
+ * A session is closed when it is dropped, by an edit or for being idle, so
+ * every write it queued is ahead of anything queued after it is dropped.
+ * Sessions are published, dropped and edits are queued holding the map of
+ * sessions.
+ */
+public class GameSessions {
+	private static final long	IDLE_TIMEOUT_MILLIS		= TimeUnit.MINUTES.toMillis(10);
+	private static final long	EVICTION_PERIOD_SECONDS	= 60;
+
+	private final DatabaseManager							dm;
+	private final ConcurrentHashMap<Integer, GameSession>	sessions	= new ConcurrentHashMap<Integer, GameSession>();
+	// Sessions queued for loading, so concurrent requests for a task wait for
+	// the same load
+	private final ConcurrentHashMap<Integer, FutureTask<GameSession>>	loading	= new ConcurrentHashMap<Integer, FutureTask<GameSession>>();
+	// How many edits of each task are queued, a task is not loaded meanwhile.
+	// Guarded by sessions
+	private final Map<Integer, Integer>									editing	= new HashMap<Integer, Integer>();
+
+	private final ScheduledExecutorService	writer	= Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "poker-write-behind");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public GameSessions(DatabaseManager dm) {
+		this.dm = dm;
+
+		writer.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, EVICTION_PERIOD_SECONDS, EVICTION_PERIOD_SECONDS, TimeUnit.SECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread("poker-write-behind-flush") {
+			@Override
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	/***
+	 * @param task_id
+	 * @return The live session of a task, loading it from the database if it
+	 *         is not in memory, or null if there is no such task.
+	 */
+	public GameSession get(int task_id) {
+		while (true) {
+			GameSession session = sessions.get(task_id);
+			if (session != null) {
+				session.touch();
+				return session;
+			}
+
+			FutureTask<GameSession> load = queueLoad(task_id);
+			if (load == null) {
+				return null;
+			}
+
+			try {
+				session = load.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while loading task " + task_id, e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Could not load task " + task_id, e.getCause());
+			}
+			if (session != null) {
+				return session;
+			}
+			// An edit of the task was queued before the load ran, load it
+			// again after the edit
+		}
+	}
+
+	/***
+	 * @return The load of the task that is queued, queuing one if there is
+	 *         none, or null if there is no such task.
+	 */
+	private FutureTask<GameSession> queueLoad(final int task_id) {
+		FutureTask<GameSession> load = loading.get(task_id);
+		if (load == null) {
+			// Unknown ids are not queued behind the writes of every game
+			if (dm.getTask(task_id) == null) {
+				return null;
+			}
+
+			FutureTask<GameSession> created = new FutureTask<GameSession>(new Callable<GameSession>() {
+				@Override
+				public GameSession call() throws Exception {
+					try {
+						return load(task_id);
+					} finally {
+						loading.remove(task_id);
+					}
+				}
+			});
+			load = loading.putIfAbsent(task_id, created);
+			if (load == null) {
+				load = created;
+				writer.execute(created);
+			}
+		}
+		return load;
+	}
+
+	/***
+	 * Edits a task's team, deck or stories in the database and drops its
+	 * session so it is reloaded on next access. The session is closed before
+	 * the edit is queued, so every vote it counted is written before the edit
+	 * and a vote arriving later is cast on the reloaded session instead.
+	 *
+	 * @param task_id
+	 * @param edit
+	 *            Changes the database, run on the writer thread.
+	 */
+	public void edit(final int task_id, final Runnable edit) {
+		Future<?> done;
+		synchronized (sessions) {
+			Integer count = editing.get(task_id);
+			editing.put(task_id, count == null ? 1 : count + 1);
+			close(sessions.remove(task_id));
+			done = writer.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						edit.run();
+					} finally {
+						edited(task_id);
+					}
+				}
+			});
+		}
+
+		try {
+			done.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while editing task " + task_id, e);
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Could not edit task " + task_id, e.getCause());
+		}
+	}
+
+	private void edited(int task_id) {
+		synchronized (sessions) {
+			int count = editing.get(task_id);
+			if (count == 1) {
+				editing.remove(task_id);
+			} else {
+				editing.put(task_id, count - 1);
+			}
+		}
+	}
+
+	/***
+	 * @param task_id
+	 * @return The session of a task if it is in memory, without loading it.
+	 */
+	public GameSession getLoaded(int task_id) {
+		GameSession session = sessions.get(task_id);
+		if (session != null) {
+			session.touch();
+		}
+		return session;
+	}
+
+	public int size() {
+		return sessions.size();
+	}
+
+	/***
+	 * @param since
+	 *            A time in milliseconds.
+	 * @return How many tasks and how many of their users were playing since
+	 *         that time, as {rooms, voters}.
+	 */
+	public int[] countActive(long since) {
+		int rooms = 0;
+		int voters = 0;
+		for (GameSession session : sessions.values()) {
+			int users = session.countActiveUsers(since);
+			if (users > 0) {
+				rooms++;
+				voters += users;
+			}
+		}
+		return new int[] { rooms, voters };
+	}
+
+	void writeBehind(Runnable write) {
+		writer.execute(write);
+	}
+
+	DatabaseManager getDatabaseManager() {
+		return dm;
+	}
+
+	/***
+	 * Stops accepting writes and waits for the queued ones to reach the
+	 * database.
+	 */
+	public void flush() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(30, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/***
+	 * Runs on the writer thread, after every write queued before it.
+	 *
+	 * @return The loaded session, or null if an edit of the task is queued.
+	 */
+	private GameSession load(int task_id) {
+		synchronized (sessions) {
+			GameSession session = sessions.get(task_id);
+			if (session != null || editing.containsKey(task_id)) {
+				return session;
+			}
+		}
+
+		List<User> users = dm.getUsersFromTask(task_id);
+		DeckSnapshot deck = dm.getDeck(task_id);
+		List<Story> stories = dm.getStoriesFromTask(task_id);
+		Map<Integer, List<UserEstimate>> votes = dm.getRecentUserEstimatesForTask(task_id);
+
+		synchronized (sessions) {
+			// An edit queued while the task was read has not run yet
+			if (editing.containsKey(task_id)) {
+				return null;
+			}
+
+			GameSession session = new GameSession(this, task_id, users, deck, stories, votes);
+			sessions.put(task_id, session);
+			return session;
+		}
+	}
+
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		synchronized (sessions) {
+			Iterator<GameSession> it = sessions.values().iterator();
+			while (it.hasNext()) {
+				GameSession session = it.next();
+				if (now - session.getLastAccess() > IDLE_TIMEOUT_MILLIS) {
+					it.remove();
+					close(session);
+				}
+			}
+		}
+	}
+
+	private static void close(GameSession session) {
+		if (session != null) {
+			session.close();
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package poker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+
+/***
+ * A writer that encodes straight to the output stream of a response, so a
+ * page is never held as a whole String.
+ *
+ * Output is buffered in chars. A page that fits in the buffer is sent with
+ * its Content-Length; a larger one is sent in chunks as the buffer fills.
+ * When {@link Compression} negotiated gzip, pages over its threshold are
+ * compressed on the way. Every thread reuses one writer with its buffers and
+ * deflater, so only one response per thread may be open at a time.
+ */
+public final class HttpOutput extends Writer {
+	private static final Logger	log			= LoggerFactory.getLogger(HttpOutput.class);
+	private static final Charset	UTF_8		= Charset.forName("UTF-8");
+	private static final int		BUFFER_SIZE	= Integer.getInteger("poker.output.buffer", 16 * 1024);
+
+	// A gzip member header: magic, deflate, no flags, no time, no extra flags,
+	// unknown OS
+	private static final byte[]		GZIP_HEADER	= { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+	private static final ThreadLocal<HttpOutput>	writers	= new ThreadLocal<HttpOutput>() {
+		@Override
+		protected HttpOutput initialValue() {
+			return new HttpOutput();
+		}
+	};
+
+	private final char[]			chars	= new char[BUFFER_SIZE];
+	private final CharsetEncoder	encoder	= UTF_8.newEncoder();
+	private final ByteBuffer		bytes	= ByteBuffer.allocate((int) (BUFFER_SIZE * encoder.maxBytesPerChar()) + 16);
+	private int						count;
+
+	private final Deflater				deflater	= new Deflater(Compression.LEVEL, true);
+	private final CRC32					crc			= new CRC32();
+	private final byte[]				deflated	= new byte[8192];
+	private final ByteArrayOutputStream	whole		= new ByteArrayOutputStream();
+
+	private HttpServletResponse	response;
+	private OutputStream		out;
+	private boolean				gzip;
+	private boolean				compressing;
+
+	private HttpOutput() {
+	}
+
+	/***
+	 * @param request
+	 * @param response
+	 * @param contentType
+	 *            The content type, the charset is always UTF-8.
+	 * @return The writer of the current thread, writing to the response. Must
+	 *         be closed to send what is left in the buffer.
+	 */
+	public static HttpOutput open(Request request, Response response, String contentType) {
+		HttpOutput writer = writers.get();
+		if (writer.response != null) {
+			throw new IllegalStateException("A response is already being written by this thread");
+		}
+
+		HttpServletResponse raw = response.raw();
+		raw.setContentType(contentType + "; charset=UTF-8");
+		writer.response = raw;
+		writer.count = 0;
+		writer.encoder.reset();
+		writer.gzip = Compression.accepted(request);
+		writer.compressing = false;
+		if (writer.gzip) {
+			raw.setHeader("Vary", "Accept-Encoding");
+		}
+		return writer;
+	}
+
+	/***
+	 * Writes a whole response body.
+	 *
+	 * @return What the route has to return.
+	 */
+	public static String send(Request request, Response response, String contentType, String body) {
+		HttpOutput out = open(request, response, contentType);
+		try {
+			out.write(body);
+		} catch (IOException e) {
+			log.warn("Could not write response", e);
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.warn("Could not close response", e);
+			}
+		}
+		return "";
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		if (count == chars.length) {
+			drain(false);
+		}
+		chars[count++] = (char) c;
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == chars.length) {
+				drain(false);
+			}
+			int n = Math.min(len, chars.length - count);
+			System.arraycopy(cbuf, off, chars, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == chars.length) {
+				drain(false);
+			}
+			int n = Math.min(len, chars.length - count);
+			str.getChars(off, off + n, chars, count);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/***
+	 * Does nothing: FreeMarker flushes when a template is done, and sending
+	 * then would lose the Content-Length of small pages. Use {@link #close()}.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/***
+	 * Sends the rest of the buffer and releases the response. The output
+	 * stream stays open for the servlet container.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (response == null) {
+			return;
+		}
+
+		try {
+			drain(true);
+			out.flush();
+		} finally {
+			response = null;
+			out = null;
+			count = 0;
+		}
+	}
+
+	/***
+	 * Encodes the buffered chars and sends them.
+	 */
+	private void drain(boolean last) throws IOException {
+		CharBuffer in = CharBuffer.wrap(chars, 0, count);
+		bytes.clear();
+
+		CoderResult result = encoder.encode(in, bytes, last);
+		if (last) {
+			result = encoder.flush(bytes);
+		}
+		if (result.isError()) {
+			result.throwException();
+		}
+
+		send(bytes.array(), bytes.position(), last);
+
+		// A surrogate pair split by the end of the buffer waits for its second
+		// half
+		int left = in.remaining();
+		System.arraycopy(chars, in.position(), chars, 0, left);
+		count = left;
+	}
+
+	/***
+	 * The first call decides how the response is sent: a response that is
+	 * complete gets a Content-Length, and is compressed if it is large
+	 * enough; otherwise it is chunked, and compressed whenever gzip was
+	 * negotiated.
+	 */
+	private void send(byte[] b, int len, boolean last) throws IOException {
+		if (out == null) {
+			compressing = gzip && (!last || len >= Compression.THRESHOLD);
+			if (compressing) {
+				response.setHeader("Content-Encoding", "gzip");
+				Compression.compressed();
+				deflater.reset();
+				crc.reset();
+			}
+
+			if (last && compressing) {
+				// Compress the whole response first to know its length
+				whole.reset();
+				deflate(b, len, true, whole);
+				response.setContentLength(whole.size());
+				out = response.getOutputStream();
+				whole.writeTo(out);
+				return;
+			}
+
+			if (last) {
+				response.setContentLength(len);
+			}
+			out = response.getOutputStream();
+			if (compressing) {
+				out.write(GZIP_HEADER);
+				Compression.record(0, GZIP_HEADER.length, 0);
+			}
+		}
+
+		if (compressing) {
+			deflate(b, len, last, out);
+		} else {
+			out.write(b, 0, len);
+		}
+	}
+
+	private void deflate(byte[] b, int len, boolean last, OutputStream target) throws IOException {
+		long start = Compression.time();
+		long written = 0;
+
+		if (target == whole) {
+			target.write(GZIP_HEADER);
+			written += GZIP_HEADER.length;
+		}
+
+		crc.update(b, 0, len);
+		deflater.setInput(b, 0, len);
+		if (last) {
+			deflater.finish();
+		}
+		while (last ? !deflater.finished() : !deflater.needsInput()) {
+			int n = deflater.deflate(deflated, 0, deflated.length);
+			target.write(deflated, 0, n);
+			written += n;
+		}
+
+		if (last) {
+			writeInt(target, (int) crc.getValue());
+			writeInt(target, deflater.getTotalIn());
+			written += 8;
+		}
+
+		Compression.record(len, written, Compression.time() - start);
+	}
+
+	private static void writeInt(OutputStream target, int i) throws IOException {
+		target.write(i & 0xff);
+		target.write((i >> 8) & 0xff);
+		target.write((i >> 16) & 0xff);
+		target.write((i >> 24) & 0xff);
+	}
+}
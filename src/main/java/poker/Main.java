@@ -1,5 +1,7 @@
 package poker;
 
+import static spark.Spark.after;
+import static spark.Spark.before;
 import static spark.Spark.get;
 import static spark.Spark.post;
 import static spark.Spark.staticFileLocation;
@@ -7,73 +9,49 @@ import static spark.Spark.staticFileLocation;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
 import java.lang.ProcessBuilder.Redirect;
 import java.sql.SQLException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import javax.servlet.AsyncContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import poker.GameSession.VoteResult;
+import poker.entities.Deck;
 import poker.entities.Estimate;
 import poker.entities.Story;
 import poker.entities.StoryEstimate;
 import poker.entities.Task;
 import poker.entities.UnitType;
 import poker.entities.User;
-import poker.entities.UserEstimate;
 import spark.JettyLogger;
 import spark.Request;
 import spark.Response;
 import spark.Route;
 import freemarker.cache.ClassTemplateLoader;
-import freemarker.template.Configuration;
-import freemarker.template.DefaultObjectWrapper;
-import freemarker.template.Template;
-import freemarker.template.TemplateException;
 
 public class Main {
+	private static final Logger		log				= LoggerFactory.getLogger(Main.class);
 	private static final int		NO_CONSENSUS	= -1;
+	private static final int		TASKS_PER_PAGE	= 100;
+	// Users whose game page made no request for longer, and has no event
+	// stream open, are not counted as playing
+	private static final long		ACTIVE_MILLIS	= 30000;
 	private static DatabaseManager	dm;
+	private static GameSessions		sessions;
+	private static PokerState		state;
+	private static PokerEvents		events;
 	private static String			ip;
 	private static int				port;
 	private static String			templatePath;
 
-	private void debug(String msg) {
-		System.out.println(msg);
-	}
-
-	private static String render(String filename, Configuration cfg, Map<String, Object> root) {
-		try {
-
-			/* Get or create a template */
-			Template temp = cfg.getTemplate(filename);
-
-			/* Merge data-model with template */
-
-			root.put("ip", ip);
-			root.put("port", port);
-
-			Writer out = new StringWriter();
-			temp.process(root, out);
-			return out.toString();
-
-		} catch (IOException | TemplateException e) {
-			e.printStackTrace();
-		}
-
-		return "Hello World...";
-	}
-
 	public static void main(String[] args) throws ClassNotFoundException {
 
 		JettyLogger jl = new JettyLogger();
@@ -81,7 +59,10 @@ public class Main {
 		// SQLite setup section
 		Class.forName("org.sqlite.JDBC");
 
-		dm = new DatabaseManager(System.out);
+		dm = new DatabaseManager();
+		sessions = new GameSessions(dm);
+		state = new PokerState(sessions);
+		events = new PokerEvents(state, sessions);
 
 		try {
 			File settings = new File("settings.txt");
@@ -91,31 +72,23 @@ public class Main {
 				ip = scanner.nextLine();
 				port = scanner.nextInt();
 
-				System.out.println(String.format("Setting server address to %s:%d with template path at '%s'", ip, port, templatePath));
+				log.info("Setting server address to {}:{} with template path at '{}'", ip, port, templatePath);
 			}
 
 		} catch (FileNotFoundException e1) {
-			System.out.println("settings.txt not found.");
-			System.out.println("Using ip = localhost && port = 4567");
+			log.info("settings.txt not found, using ip = localhost && port = 4567");
 
 			templatePath = ".";
 			ip = "localhost";
 			port = 4567;
 		}
 
-		final Configuration cfg = new Configuration();
-		try {
-
-			File file = new File(templatePath);
-			//File file = new File(Thread.currentThread().getContextClassLoader().getResource("content/templates/")
-			//		.toURI());
+		final TemplateRenderer renderer = new TemplateRenderer(templatePath);
+		renderer.setGlobal("ip", ip);
+		renderer.setGlobal("port", port);
 
-			cfg.setDirectoryForTemplateLoading(file);
-			cfg.setObjectWrapper(new DefaultObjectWrapper());
-
-		} catch (Exception e) {
-			System.err.println(e.getStackTrace());
-		}
+		final Assets assets = Assets.load();
+		renderer.setGlobal("asset", assets.helper());
 
 		staticFileLocation("/content");
 
@@ -123,25 +96,69 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 
-				System.out.println("Index page reached!");
 				response.redirect("/tasks", 302);
 				return null;
 			}
 		});
 
-		get(new Route("/tasks") {
+		before(Metrics.start());
+		after(Metrics.finish());
+		before(Compression.filter());
+
+		get(new Route(Assets.PATH + ":name") {
 			@Override
 			public Object handle(Request request, Response response) {
+				return assets.serve(request.params(":name"), request, response);
+			}
+		});
 
-				/* Create a data-model */
-				Map<String, Object> root = new HashMap<String, Object>();
-				List<Task> tasks = dm.getTasks();
-				for (Task t : tasks) {
-					t.setUsers(dm.getUsersFromTask(t.getId()));
+		get(new Route("/stats") {
+			@Override
+			public Object handle(Request request, Response response) {
+				return HttpOutput.send(request, response, "application/json",
+						StoryState.GSON.toJson(stats(renderer)));
+			}
+		});
+
+		get(new Route("/metrics") {
+			@Override
+			public Object handle(Request request, Response response) {
+
+				Map<String, Number> gauges = new HashMap<String, Number>();
+				for (Map.Entry<String, Object> entry : stats(renderer).entrySet()) {
+					if (entry.getValue() instanceof Number) {
+						gauges.put("poker_" + entry.getKey(), (Number) entry.getValue());
+					}
 				}
-				root.put("tasks", tasks);
+				int[] active = sessions.countActive(System.currentTimeMillis() - ACTIVE_MILLIS);
+				gauges.put("poker_active_rooms", active[0]);
+				gauges.put("poker_active_voters", active[1]);
+				gauges.put("poker_loaded_sessions", sessions.size());
 
-				return render("tasks.ftl", cfg, root);
+				return HttpOutput.send(request, response, "text/plain; version=0.0.4", Metrics.scrape(gauges));
+			}
+		});
+
+		get(new Route("/tasks") {
+			@Override
+			public Object handle(Request request, Response response) {
+
+				final int after = request.queryParams("after") == null ? 0 : Integer.parseInt(request
+						.queryParams("after"));
+
+				return renderer.render("tasks:" + after, dm.getVersion(), "tasks.ftl", new TemplateRenderer.Model() {
+					@Override
+					public Map<String, Object> build() {
+						/* Create a data-model */
+						Map<String, Object> root = new HashMap<String, Object>();
+						List<Task> tasks = dm.getTasksWithUsers(after, TASKS_PER_PAGE);
+						root.put("tasks", tasks);
+						root.put("first_page", after == 0);
+						root.put("next_after", tasks.size() == TASKS_PER_PAGE ? tasks.get(tasks.size() - 1).getId()
+								: -1);
+						return root;
+					}
+				}, request, response);
 			}
 		});
 
@@ -154,7 +171,8 @@ public class Main {
 				Map<String, Object> root = new HashMap<String, Object>();
 				root.put("task", new Task("", ""));
 				root.put("edit", false);
-				return render("task_info.ftl", cfg, root);
+				root.put("decks", Deck.values());
+				return renderer.render("task_info.ftl", root, request, response);
 			}
 
 		});
@@ -166,7 +184,7 @@ public class Main {
 
 				int id = dm.insertTask(new Task(request.queryParams("task_name"), request
 						.queryParams("task_description")));
-				dm.createFibonacciEstimations(id);
+				dm.createEstimations(id, Deck.forId(request.queryParams("deck")));
 
 				response.redirect("/task/" + id + "/edit/info");
 				return null;
@@ -184,7 +202,7 @@ public class Main {
 				root.put("task_users", dm.getUsersFromTask(task_id));
 				root.put("edit", true);
 
-				return render("task_info.ftl", cfg, root);
+				return renderer.render("task_info.ftl", root, request, response);
 			}
 
 		});
@@ -228,10 +246,15 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 
-				int task_id = Integer.parseInt(request.params(":id"));
+				final int task_id = Integer.parseInt(request.params(":id"));
 
-				int user_id = Integer.parseInt(request.queryParams("user"));
-				dm.addUserToTask(task_id, user_id);
+				final int user_id = Integer.parseInt(request.queryParams("user"));
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.addUserToTask(task_id, user_id);
+					}
+				});
 
 				response.redirect(String.format("/task/%d/edit/info", task_id));
 				return null;
@@ -242,10 +265,15 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 
-				int task_id = Integer.parseInt(request.params(":id"));
+				final int task_id = Integer.parseInt(request.params(":id"));
 
-				int user_id = Integer.parseInt(request.params(":user_id"));
-				dm.deleteUserFromTask(task_id, user_id);
+				final int user_id = Integer.parseInt(request.params(":user_id"));
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.deleteUserFromTask(task_id, user_id);
+					}
+				});
 
 				response.redirect(String.format("/task/%d/edit/info", task_id));
 				return null;
@@ -260,11 +288,11 @@ public class Main {
 				Map<String, Object> root = new HashMap<String, Object>();
 				int task_id = Integer.parseInt(request.params(":id"));
 				root.put("task", dm.getTask(task_id));
-				List<Estimate> estimations = dm.getEstimationsForTask(task_id);
-				root.put("complexities", estimations);
-				root.put("unit_id", estimations.get(0).getUnit().getCode());
+				DeckSnapshot deck = dm.getDeck(task_id);
+				root.put("complexities", deck.getCards());
+				root.put("unit_id", deck.get(0).getUnit().getCode());
 
-				return render("task_estimations.ftl", cfg, root);
+				return renderer.render("task_estimations.ftl", root, request, response);
 			}
 
 		});
@@ -277,7 +305,7 @@ public class Main {
 
 				int unit = Integer.parseInt(request.queryParams("estimation_unit"));
 
-				List<Estimate> task_estimations = dm.getEstimationsForTask(task_id);
+				final List<Estimate> task_estimations = dm.getEstimationsForTask(task_id);
 
 				for (Estimate estimate : task_estimations) {
 					try {
@@ -290,9 +318,16 @@ public class Main {
 
 					// we still need to set the new unit type on all
 					// estimations!
-					estimate.setUnit(UnitType.values()[unit - 1]);
-					dm.setEstimate(estimate);
+					estimate.setUnit(UnitType.fromCode(unit));
 				}
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						for (Estimate estimate : task_estimations) {
+							dm.setEstimate(estimate);
+						}
+					}
+				});
 
 				response.redirect("/task/" + task_id + "/edit/estimations");
 				return null;
@@ -312,7 +347,7 @@ public class Main {
 				root.put("stories", dm.getStoriesFromTask(task_id));
 				root.put("published", t.getPublishedAt() != null);
 
-				return render("task_stories.ftl", cfg, root);
+				return renderer.render("task_stories.ftl", root, request, response);
 			}
 
 		});
@@ -333,9 +368,14 @@ public class Main {
 			public Object handle(Request request, Response response) {
 
 				int task_id = Integer.parseInt(request.params(":task_id"));
-				int story_id = Integer.parseInt(request.params(":story_id"));
+				final int story_id = Integer.parseInt(request.params(":story_id"));
 
-				dm.deleteStory(story_id);
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.deleteStory(story_id);
+					}
+				});
 
 				response.redirect(String.format("/task/%d/edit/stories", task_id));
 				return null;
@@ -345,12 +385,16 @@ public class Main {
 		post(new Route("/task/:id/story/add") {
 			@Override
 			public Object handle(Request request, Response response) {
-				System.out.println("Adding story");
-				int task_id = Integer.parseInt(request.params(":id"));
-				String story_name = request.queryParams("story_name");
-				String story_desc = request.queryParams("story_description");
-
-				dm.insertStory(new Story(task_id, story_name, story_desc));
+				final int task_id = Integer.parseInt(request.params(":id"));
+				final String story_name = request.queryParams("story_name");
+				final String story_desc = request.queryParams("story_description");
+
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.insertStory(new Story(task_id, story_name, story_desc));
+					}
+				});
 
 				response.redirect(String.format("/task/%d/edit/stories", task_id));
 				return null;
@@ -361,9 +405,14 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 				int task_id = Integer.parseInt(request.params(":id"));
-				Task t = dm.getTask(task_id);
+				final Task t = dm.getTask(task_id);
 				t.setPublishedAt(new java.sql.Date(new java.util.Date().getTime()));
-				dm.setTask(t);
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.setTask(t);
+					}
+				});
 
 				response.redirect("/");
 				return null;
@@ -374,9 +423,14 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 				int task_id = Integer.parseInt(request.params(":id"));
-				Task t = dm.getTask(task_id);
+				final Task t = dm.getTask(task_id);
 				t.setPublishedAt(null);
-				dm.setTask(t);
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.setTask(t);
+					}
+				});
 
 				response.redirect(String.format("/task/%d/edit/stories", task_id));
 				return null;
@@ -387,9 +441,14 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 
-				int task_id = Integer.parseInt(request.params(":task_id"));
+				final int task_id = Integer.parseInt(request.params(":task_id"));
 
-				dm.deleteTask(task_id);
+				edit(task_id, new Runnable() {
+					@Override
+					public void run() {
+						dm.deleteTask(task_id);
+					}
+				});
 
 				response.redirect("/tasks", 302);
 				return null;
@@ -401,10 +460,9 @@ public class Main {
 			public Object handle(Request request, Response response) {
 
 				int task_id = Integer.parseInt(request.params(":id"));
-				List<Estimate> estimates = dm.getEstimationsForTask(task_id);
+				DeckSnapshot deck = dm.getDeck(task_id);
 
-				response.redirect(String.format("/task/%d/summary/unit/%d", task_id, estimates.get(0).getUnit()
-						.getCode()));
+				response.redirect(String.format("/task/%d/summary/unit/%d", task_id, deck.get(0).getUnit().getCode()));
 				return null;
 			}
 		});
@@ -425,37 +483,52 @@ public class Main {
 			@Override
 			public Object handle(Request request, Response response) {
 
-				int task_id = Integer.parseInt(request.params(":id"));
-				int unit_id = Integer.parseInt(request.params(":unit_id"));
-
-				Map<String, Object> root = new HashMap<String, Object>();
-				root.put("id", task_id);
-
-				float total = 0;
+				final int task_id = Integer.parseInt(request.params(":id"));
+				final int unit_id = Integer.parseInt(request.params(":unit_id"));
 
-				List<StoryEstimate> stories = new ArrayList<StoryEstimate>();
-				for (Story s : dm.getStoriesFromTask(task_id)) {
-					int consensus_id = s.getConsensus();
-					float result = -1;
-					String complexity = "";
-
-					if (consensus_id != NO_CONSENSUS) {
-						Estimate e = dm.getEstimate(consensus_id);
-						if (e.getUnitValue() != -1) {
-							result = e.getUnitValue(UnitType.values()[unit_id - 1]);
-							total += result;
-						}
-						complexity = e.getComplexitySymbol();
-					}
-					stories.add(new StoryEstimate(s, new DecimalFormat("#.##").format(result), String.format("%s",
-							complexity)));
+				// Consensus reached in the game may not be in the database yet
+				final GameSession session = sessions.get(task_id);
+				if (session == null) {
+					response.status(404);
+					return "";
 				}
 
-				root.put("stories", stories);
-				root.put("unit_id", unit_id);
-				root.put("total", new DecimalFormat("#.##").format(total));
+				String key = "summary:" + task_id + ":" + unit_id;
+				return renderer.render(key, session.getVersion(), "task_summary.ftl", new TemplateRenderer.Model() {
+					@Override
+					public Map<String, Object> build() {
+						Map<String, Object> root = new HashMap<String, Object>();
+						root.put("id", task_id);
+
+						float total = 0;
+
+						List<StoryEstimate> stories = new ArrayList<StoryEstimate>();
+						DeckSnapshot deck = session.getDeck();
+						synchronized (session) {
+							for (Story s : session.getStories()) {
+								int consensus_id = s.getConsensus();
+								float result = -1;
+								String complexity = "";
+
+								Estimate e = consensus_id == NO_CONSENSUS ? null : deck.getById(consensus_id);
+								if (e != null) {
+									if (e.getUnitValue() != -1) {
+										result = e.getUnitValue(UnitType.fromCode(unit_id));
+										total += result;
+									}
+									complexity = e.getComplexitySymbol();
+								}
+								stories.add(new StoryEstimate(s, new DecimalFormat("#.##").format(result), String
+										.format("%s", complexity)));
+							}
+						}
 
-				return render("task_summary.ftl", cfg, root);
+						root.put("stories", stories);
+						root.put("unit_id", unit_id);
+						root.put("total", new DecimalFormat("#.##").format(total));
+						return root;
+					}
+				}, request, response);
 			}
 		});
 
@@ -466,20 +539,17 @@ public class Main {
 				Map<String, Object> root = new HashMap<String, Object>();
 				int task_id = Integer.parseInt(request.params(":task_id"));
 				int user_id = Integer.parseInt(request.params(":user_id"));
-				List<Story> storiesFromTask = dm.getStoriesFromTask(task_id);
-				List<HashMap<User, List<Estimate>>> story_estimations = new ArrayList<HashMap<User, List<Estimate>>>();
-				for (Story s : storiesFromTask) {
-					s.setEstimations(dm.getEstimatesFromStory(s.getId()));
-					story_estimations.add(dm.getEstimatesFromStory(s.getId()));
+				GameSession session = play(request, response);
+				if (session == null) {
+					return "";
 				}
 				root.put("task", dm.getTask(task_id));
-				root.put("stories", storiesFromTask);
-				root.put("users", dm.getUsersFromTask(task_id));
+				root.put("stories", session.getStories());
+				root.put("users", session.getUsers());
 				root.put("user", dm.getUser(user_id));
-				root.put("estimations", dm.getEstimationsForTask(task_id));
-				root.put("story_estimations", story_estimations);
+				root.put("estimations", session.getDeck().getCards());
 
-				return render("poker.ftl", cfg, root);
+				return renderer.render("poker.ftl", root, request, response);
 			}
 		});
 
@@ -488,197 +558,70 @@ public class Main {
 			public Object handle(Request request, Response response) {
 
 				int task_id = Integer.parseInt(request.params(":task_id"));
-				int user_id = Integer.parseInt(request.params(":user_id"));
 				int story_id = Integer.parseInt(request.params(":story_id"));
-
-				// TODO: Calculate consensus divergence and colour code
-				// differences
-				List<UserEstimate> latestEstimations = dm.getLatestEstimatesForStory(story_id);
-				int iteration = dm.getLatestIteration(story_id);
-
-				List<UserEstimate> previousEstimations = dm.getUserEstimatesForStoryWithIteration(story_id,
-						iteration > 0 ? iteration - 1 : iteration);
-
-				if (iteration == 1) {
-					System.out.println("debug!");
+				String since = request.queryParams("since");
+				if (play(request, response) == null) {
+					return "";
 				}
 
-				Gson gson = new GsonBuilder().create();
-				HashMap<String, String> gmap = new HashMap<String, String>();
-
-				if (latestEstimations.size() == 0) {
-					gmap.put("vote", "true");
-				} else {
-					boolean userFound = false;
-					for (UserEstimate ue : latestEstimations) {
-						if (ue.getUser().getId() == user_id) {
-							userFound = true;
-						}
-					}
-
-					if (userFound) {
-						gmap.put("vote", "false");
-					} else {
-						gmap.put("vote", "true");
-					}
+				StoryState storyState = state.story(task_id, story_id);
+				if (storyState == null) {
+					response.status(404);
+					return "";
 				}
 
-				StringBuilder sb = new StringBuilder();
-				// Previous iteration
-				if (iteration > 0) {
-
-					// Sort estimates
-					class UserComparer implements Comparator<UserEstimate> {
-
-						@Override
-						public int compare(UserEstimate lhs, UserEstimate rhs) {
-							int l = lhs.getEstimate().getId();
-							int r = rhs.getEstimate().getId();
-
-							return l - r;
-						}
-
-					}
-
-					// Collections.sort(previousEstimations, new
-					// UserComparer());
-
-					// Sort by count
-					class SortByCountComparer implements Comparator<ArrayList<UserEstimate>> {
-
-						@Override
-						public int compare(ArrayList<UserEstimate> lhs, ArrayList<UserEstimate> rhs) {
-							return lhs.size() - rhs.size();
-						}
-
-					}
-
-					HashMap<Integer, ArrayList<UserEstimate>> buckets = new HashMap<Integer, ArrayList<UserEstimate>>();
-
-					for (UserEstimate ue : previousEstimations) {
-						int id = ue.getEstimate().getId();
-						if (buckets.containsKey(id)) {
-							buckets.get(id).add(ue);
-						} else {
-							ArrayList<UserEstimate> estimates = new ArrayList<UserEstimate>();
-							estimates.add(ue);
-							buckets.put(id, estimates);
-						}
-					}
-
-					List<ArrayList<UserEstimate>> estimates = new ArrayList<ArrayList<UserEstimate>>();
-
-					for (Map.Entry<Integer, ArrayList<UserEstimate>> entry : buckets.entrySet()) {
-						estimates.add(entry.getValue());
-					}
-
-					Collections.sort(estimates, new SortByCountComparer());
-
-					// Add color by distance to last element
-					for (int i = 0; i < estimates.size(); i++) {
-						ArrayList<UserEstimate> ues = estimates.get(i);
-						for (int x = 0; x < ues.size(); x++) {
-							UserEstimate e = ues.get(x);
-							// Count
-							switch ((estimates.size() - 1) - i) {
-							case 0:
-								e.setColor("label-success");
-								break;
-							case 1:
-								e.setColor("label-warning");
-								break;
-							case 2:
-								e.setColor("label-danger");
-								break;
-							default:
-								e.setColor("label-inverse");
-								break;
-							}
-						}
-					}
-
-					// Sort by id
-					Collections.sort(previousEstimations, new UserComparer());
-
-					// Render
-					for (UserEstimate userEstimate : previousEstimations) {
-						sb.append("<span id=\"user-"
-								+ story_id
-								+ "-"
-								+ userEstimate.getUser().getId()
-								+ "\" class=\"label "
-								+ userEstimate.getColor()
-								+ "\" style=\"font-size: 100%; padding:8px; text-align:center; vertical-align:middle;\">");
-						sb.append("<strong>");
-						sb.append(userEstimate.getEstimate().getComplexitySymbol());
-						sb.append("</strong>");
-						sb.append("</span>");
-					}
+				if (since != null) {
+					long version = Long.parseLong(since);
+					return poll(request, response, task_id, story_id, version,
+							storyState.getVersion() > version ? storyState.toJson() : null);
 				}
 
-				// Next iteration
-
-				boolean consensus = true;
-				ArrayList<Integer> values = new ArrayList<Integer>();
+				return HttpOutput.send(request, response, "application/json", storyState.toJson());
+			}
+		});
 
-				if (iteration == 1) {
-					System.out.println("debug!");
-				}
+		get(new Route("/task/:task_id/user/:user_id/state") {
+			@Override
+			public Object handle(Request request, Response response) {
 
-				for (UserEstimate ue : previousEstimations) {
-					values.add(ue.getEstimate().getId());
+				int task_id = Integer.parseInt(request.params(":task_id"));
+				String since = request.queryParams("since");
+				if (play(request, response) == null) {
+					return "";
 				}
 
-				for (UserEstimate ue : latestEstimations) {
-					sb.append("<button class=\"btn btn-info btn-small\">");
-					sb.append("<i class=\"icon-tasks\">");
-					sb.append("</i> ");
-					sb.append("<strong>");
-					sb.append(ue.getUser().getName());
-					sb.append("</strong>");
-					sb.append("</button>");
+				if (since != null) {
+					return poll(request, response, task_id, -1, Long.parseLong(since),
+							state.taskJson(task_id, Long.parseLong(since)));
 				}
 
-				gmap.put("data", sb.toString());
-
-				// calculate consensus
-
-				if (dm.getStory(story_id).getConsensus() == NO_CONSENSUS) {
-					System.out.println("Story has no consensus from previous iteration ...");
+				return HttpOutput.send(request, response, "application/json", state.taskJson(task_id));
+			}
+		});
 
-					if (values.size() == dm.getUsersFromTask(task_id).size()) {
-						System.out.println("Everyone have estimated this story ...");
-						for (int i = 1; i < values.size(); i++) {
-							if (values.get(i - 1) != values.get(i)) {
-								consensus = false;
-							}
-						}
-					} else {
-						consensus = false;
-					}
+		get(new Route("/task/:task_id/user/:user_id/events") {
+			@Override
+			public Object handle(Request request, Response response) {
 
-					if (consensus) {
-						System.out.println(String.format("Found consensus for story [%d], inner if", story_id));
+				int task_id = Integer.parseInt(request.params(":task_id"));
+				if (play(request, response) == null) {
+					return "";
+				}
 
-						Story s = dm.getStory(story_id);
-						if (previousEstimations.size() > 0) {
-							s.setConsensus(previousEstimations.get(1).getEstimate().getId());
-							dm.setStory(s);
-						}
+				if (!request.raw().isAsyncSupported()) {
+					// Clients fall back to polling the story routes
+					response.status(501);
+					return "";
+				}
 
-						gmap.put("consensus", "true");
-					} else {
-						System.out.println(String.format("Did not find consensus for story [%d]", story_id));
+				response.raw().setContentType("text/event-stream");
+				response.raw().setCharacterEncoding("UTF-8");
+				response.header("Cache-Control", "no-cache");
 
-						gmap.put("consensus", "false");
-					}
-				} else {
-					System.out.println(String.format("Found consensus for story [%d]", story_id));
-					gmap.put("consensus", "true");
-				}
+				AsyncContext context = request.raw().startAsync();
+				events.subscribe(task_id, Integer.parseInt(request.params(":user_id")), context);
 
-				System.out.println(gmap);
-				return gson.toJson(gmap);
+				return "";
 			}
 		});
 
@@ -691,20 +634,98 @@ public class Main {
 				int story_id = Integer.parseInt(request.params(":story_id"));
 				int estimate_id = Integer.parseInt(request.queryParams("estimate_id"));
 
-				List<User> usersOnThisTask = dm.getUsersFromTask(task_id);
-				List<UserEstimate> estimatesByUsersThisIteration = dm.getLatestEstimatesForStory(story_id);
+				// A retried vote carries the key of the first attempt
+				String key = request.queryParams("key");
+
+				GameSession session = play(request, response);
+				if (session == null) {
+					return "";
+				}
+				VoteResult result = session.vote(story_id, user_id, estimate_id, key);
+				while (result == VoteResult.INVALID && session.isClosed()) {
+					// The task was edited or its session evicted meanwhile
+					session = play(request, response);
+					if (session == null) {
+						return "";
+					}
+					result = session.vote(story_id, user_id, estimate_id, key);
+				}
+				// Lets load tests tell a counted vote from an ignored retry
+				response.header("X-Vote", result.name().toLowerCase());
+				if (result == VoteResult.INVALID) {
+					response.status(400);
+					return "0";
+				}
 
-				// If everyone has voted, increase iteration
-				if (estimatesByUsersThisIteration.size() == usersOnThisTask.size() - 1) {
-					dm.addEstimateToStory(story_id, user_id, estimate_id);
-					dm.increaseStoryIteration(story_id);
-				} else {
-					dm.addEstimateToStory(story_id, user_id, estimate_id);
+				if (result == VoteResult.COUNTED) {
+					events.storyChanged(task_id, story_id);
 				}
 
-				return "1";
+				// The state after the vote, so the client does not have to poll
+				return HttpOutput.send(request, response, "application/json", state.story(task_id, story_id).toJson());
 			}
 		});
 
 	}
+
+	/***
+	 * Edits a task through {@link GameSessions#edit(int, Runnable)} and sends
+	 * its reloaded state to the clients playing it.
+	 */
+	private static void edit(int task_id, Runnable edit) {
+		sessions.edit(task_id, edit);
+		events.taskChanged(task_id);
+	}
+
+	/***
+	 * @return The session of the task in the request's path, noting that its
+	 *         user is playing, or null after answering 404 if there is no
+	 *         such task.
+	 */
+	private static GameSession play(Request request, Response response) {
+		GameSession session = sessions.get(Integer.parseInt(request.params(":task_id")));
+		if (session == null) {
+			response.status(404);
+			return null;
+		}
+
+		session.seen(Integer.parseInt(request.params(":user_id")));
+		return session;
+	}
+
+	private static Map<String, Object> stats(TemplateRenderer renderer) {
+		Map<String, Object> stats = new HashMap<String, Object>();
+		stats.put("statement_cache_hits", dm.getStatementCacheHits());
+		stats.put("statement_cache_misses", dm.getStatementCacheMisses());
+		stats.putAll(dm.getEntityCacheStats());
+		stats.put("fragment_cache_hits", renderer.getFragmentHits());
+		stats.put("fragment_cache_misses", renderer.getFragmentMisses());
+
+		stats.putAll(Compression.getStats());
+		return stats;
+	}
+
+	/***
+	 * Answers a poll for state newer than a version: at once if there is
+	 * some, otherwise by holding the request without its thread until there
+	 * is or the poll times out.
+	 *
+	 * @param changes
+	 *            The state that already changed, or null.
+	 */
+	private static String poll(Request request, Response response, int task_id, int story_id, long since,
+			String changes) {
+		if (changes != null) {
+			return HttpOutput.send(request, response, "application/json", changes);
+		}
+
+		if (!request.raw().isAsyncSupported()) {
+			// The client polls again
+			response.status(204);
+			return "";
+		}
+
+		events.await(task_id, story_id, since, request.raw().startAsync());
+		return "";
+	}
 }
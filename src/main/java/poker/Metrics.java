@@ -0,0 +1,441 @@
+package poker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import spark.Filter;
+import spark.Request;
+import spark.Response;
+
+/***
+ * Request, database and template timings, exposed in the Prometheus text
+ * format on /metrics.
+ *
+ * Instrumented code looks up its histograms once and keeps them, so recording
+ * takes a few atomic increments and never waits on a lock held by another
+ * request. Latencies are kept in fixed buckets from 0.1 ms to 10 s.
+ */
+public class Metrics {
+	// Upper bounds of the latency buckets, in seconds
+	private static final String[]	BUCKETS		= { "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+			"0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10" };
+
+	// Beyond this many routes, e.g. when clients probe random paths, the
+	// rest are counted as "other"
+	private static final int		MAX_ROUTES	= 200;
+	private static final String		START		= "poker.metrics.start";
+
+	public static final Histograms	REQUESTS		= new Histograms("poker_http_request_duration_seconds",
+															"Time spent handling requests, by route.", "method",
+															"route");
+	public static final Counters	RESPONSES		= new Counters("poker_http_responses_total",
+															"Responses sent, by route and status.", "method", "route",
+															"status");
+	public static final Histograms	LOCK_WAIT		= new Histograms("poker_db_lock_wait_seconds",
+															"Time spent waiting for a database connection.", "lock");
+	public static final Histograms	LOCK_HELD		= new Histograms("poker_db_lock_held_seconds",
+															"Time a thread held the database connection, by lock.", "lock");
+	public static final Histograms	QUERIES			= new Histograms("poker_db_query_duration_seconds",
+															"Time spent executing SQL and reading its results, by query.",
+															"query");
+	public static final Histograms	RENDERS			= new Histograms("poker_template_render_duration_seconds",
+															"Time spent rendering templates, by template.",
+															"template");
+
+	private static final List<Family>	FAMILIES	= Collections.unmodifiableList(Arrays.<Family> asList(
+															REQUESTS, RESPONSES, LOCK_WAIT, LOCK_HELD, QUERIES,
+															RENDERS));
+
+	/***
+	 * A latency histogram with cumulative buckets.
+	 */
+	public static final class Histogram {
+		private static final long[]	BOUNDS	= new long[BUCKETS.length];
+		static {
+			for (int i = 0; i < BUCKETS.length; i++) {
+				BOUNDS[i] = (long) (Double.parseDouble(BUCKETS[i]) * 1e9);
+			}
+		}
+
+		private final AtomicLongArray	counts		= new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong		sumNanos	= new AtomicLong();
+
+		public void observe(long nanos) {
+			int i = 0;
+			while (i < BOUNDS.length && nanos > BOUNDS[i]) {
+				i++;
+			}
+			counts.incrementAndGet(i);
+			sumNanos.addAndGet(nanos);
+		}
+
+		/***
+		 * Records the time since a start taken with System.nanoTime().
+		 */
+		public void since(long start) {
+			observe(System.nanoTime() - start);
+		}
+
+		private void write(StringBuilder sb, String name, String labels) {
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += counts.get(i);
+				sample(sb, name + "_bucket", labels, "le=\"" + BUCKETS[i] + "\"", cumulative);
+			}
+			cumulative += counts.get(BUCKETS.length);
+			sample(sb, name + "_bucket", labels, "le=\"+Inf\"", cumulative);
+			sb.append(name).append("_sum");
+			if (!labels.isEmpty()) {
+				sb.append('{').append(labels).append('}');
+			}
+			sb.append(' ').append(sumNanos.get() / 1e9).append('\n');
+			sample(sb, name + "_count", labels, null, cumulative);
+		}
+	}
+
+	private abstract static class Family {
+		final String	name;
+		final String	help;
+		final String[]	labels;
+
+		Family(String name, String help, String... labels) {
+			this.name = name;
+			this.help = help;
+			this.labels = labels;
+		}
+
+		/***
+		 * @return The label values as they are written, e.g. method="GET"
+		 */
+		String key(String... values) {
+			if (values.length != labels.length) {
+				throw new IllegalArgumentException(name + " takes the labels " + Arrays.toString(labels));
+			}
+
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(labels[i]).append("=\"").append(escape(values[i])).append('"');
+			}
+			return sb.toString();
+		}
+
+		abstract void write(StringBuilder sb);
+	}
+
+	/***
+	 * Histograms of one metric, one per combination of label values.
+	 */
+	public static final class Histograms extends Family {
+		private final ConcurrentHashMap<String, Histogram>	children	= new ConcurrentHashMap<String, Histogram>();
+
+		Histograms(String name, String help, String... labels) {
+			super(name, help, labels);
+		}
+
+		/***
+		 * @param values
+		 *            A value for each label, in order.
+		 * @return The histogram for those values, which callers may keep.
+		 */
+		public Histogram labels(String... values) {
+			String key = key(values);
+			Histogram histogram = children.get(key);
+			if (histogram == null) {
+				Histogram created = new Histogram();
+				histogram = children.putIfAbsent(key, created);
+				if (histogram == null) {
+					histogram = created;
+				}
+			}
+			return histogram;
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			header(sb, name, help, "histogram");
+			for (Map.Entry<String, Histogram> entry : children.entrySet()) {
+				entry.getValue().write(sb, name, entry.getKey());
+			}
+		}
+	}
+
+	/***
+	 * Counters of one metric, one per combination of label values.
+	 */
+	public static final class Counters extends Family {
+		private final ConcurrentHashMap<String, AtomicLong>	children	= new ConcurrentHashMap<String, AtomicLong>();
+
+		Counters(String name, String help, String... labels) {
+			super(name, help, labels);
+		}
+
+		/***
+		 * @param values
+		 *            A value for each label, in order.
+		 * @return The counter for those values, which callers may keep.
+		 */
+		public AtomicLong labels(String... values) {
+			String key = key(values);
+			AtomicLong counter = children.get(key);
+			if (counter == null) {
+				AtomicLong created = new AtomicLong();
+				counter = children.putIfAbsent(key, created);
+				if (counter == null) {
+					counter = created;
+				}
+			}
+			return counter;
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			header(sb, name, help, "counter");
+			for (Map.Entry<String, AtomicLong> entry : children.entrySet()) {
+				sample(sb, name, entry.getKey(), null, entry.getValue().get());
+			}
+		}
+	}
+
+	/***
+	 * @return The filter noting when a request started, to run before every
+	 *         other.
+	 */
+	public static Filter start() {
+		return new Filter() {
+			@Override
+			public void handle(Request request, Response response) {
+				request.attribute(START, System.nanoTime());
+			}
+		};
+	}
+
+	/***
+	 * @return The filter recording how long a request took. Requests that
+	 *         went asynchronous are recorded up to the moment their route
+	 *         returned.
+	 */
+	public static Filter finish() {
+		return new Filter() {
+			@Override
+			public void handle(Request request, Response response) {
+				Object start = request.attribute(START);
+				if (!(start instanceof Long)) {
+					return;
+				}
+
+				RouteMetrics route = route(request.requestMethod(), request.pathInfo());
+				route.duration.since((Long) start);
+				route.responses(response.raw().getStatus()).incrementAndGet();
+			}
+		};
+	}
+
+	// Matches any segment of a path
+	private static final String	ANY	= ":name";
+	// Matches a segment made of digits
+	private static final String	ID	= ":id";
+
+	/***
+	 * The metrics of one method and route. A request finds its route by
+	 * matching its path against the route's segments, without building
+	 * anything.
+	 */
+	private static final class RouteMetrics {
+		final String									method;
+		final String									route;
+		// null for "other", which no path matches
+		final String[]									segments;
+		final Histogram									duration;
+		private final ConcurrentHashMap<Integer, AtomicLong>	statuses	= new ConcurrentHashMap<Integer, AtomicLong>();
+
+		RouteMetrics(String method, String route, String[] segments) {
+			this.method = method;
+			this.route = route;
+			this.segments = segments;
+			this.duration = REQUESTS.labels(method, route);
+		}
+
+		AtomicLong responses(int status) {
+			AtomicLong counter = statuses.get(status);
+			if (counter == null) {
+				counter = RESPONSES.labels(method, route, Integer.toString(status));
+				statuses.put(status, counter);
+			}
+			return counter;
+		}
+
+		boolean matches(String method, String path) {
+			if (segments == null || !this.method.equals(method)) {
+				return false;
+			}
+
+			int pos = 0;
+			for (String segment : segments) {
+				if (pos >= path.length() || path.charAt(pos) != '/') {
+					return false;
+				}
+				pos++;
+				int end = path.indexOf('/', pos);
+				if (end < 0) {
+					end = path.length();
+				}
+
+				// By identity, a path may have a literal ":id" segment
+				if (segment == ID) {
+					if (end == pos || !isNumber(path, pos, end)) {
+						return false;
+					}
+				} else if (segment != ANY
+						&& (end - pos != segment.length() || !path.regionMatches(pos, segment, 0, segment.length()))) {
+					return false;
+				}
+				pos = end;
+			}
+			// A trailing slash makes no other route
+			return pos == path.length() || (pos == path.length() - 1 && path.charAt(pos) == '/');
+		}
+	}
+
+	// Copied on write, read by every request
+	private static volatile RouteMetrics[]		routes		= new RouteMetrics[0];
+	private static final Map<String, RouteMetrics>	routesByName	= new HashMap<String, RouteMetrics>();
+
+	/***
+	 * @param method
+	 * @param path
+	 * @return The metrics of the route of the path, with ids replaced, e.g.
+	 *         /task/:id/user/:id/state
+	 */
+	private static RouteMetrics route(String method, String path) {
+		for (RouteMetrics route : routes) {
+			if (route.matches(method, path)) {
+				return route;
+			}
+		}
+		return learn(method, path);
+	}
+
+	private static synchronized RouteMetrics learn(String method, String path) {
+		List<String> segments = new ArrayList<String>();
+		if (path.startsWith(Assets.PATH)) {
+			segments.add(Assets.PATH.substring(1, Assets.PATH.length() - 1));
+			segments.add(ANY);
+		} else {
+			for (String segment : path.split("/")) {
+				if (!segment.isEmpty()) {
+					segments.add(isNumber(segment, 0, segment.length()) ? ID : segment);
+				}
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (String segment : segments) {
+			sb.append('/').append(segment);
+		}
+		String name = sb.length() == 0 ? "/" : sb.toString();
+
+		RouteMetrics route = routesByName.get(method + " " + name);
+		if (route != null) {
+			// A path of an odd shape, e.g. with a double slash
+			return route;
+		}
+
+		if (routes.length >= MAX_ROUTES) {
+			name = "other";
+			route = routesByName.get(method + " " + name);
+			if (route == null) {
+				route = new RouteMetrics(method, name, null);
+				routesByName.put(method + " " + name, route);
+			}
+			return route;
+		}
+
+		route = new RouteMetrics(method, name, segments.toArray(new String[segments.size()]));
+		routesByName.put(method + " " + name, route);
+		RouteMetrics[] learned = Arrays.copyOf(routes, routes.length + 1);
+		learned[routes.length] = route;
+		routes = learned;
+		return route;
+	}
+
+	/***
+	 * @param sql
+	 * @return A short name for a statement: its verb and the first table it
+	 *         names, e.g. "select stories".
+	 */
+	static String queryName(String sql) {
+		String[] words = sql.trim().toLowerCase().split("[\\s(),]+");
+		String verb = words.length > 0 ? words[0] : "";
+		for (int i = 0; i < words.length - 1; i++) {
+			if (words[i].equals("from") || words[i].equals("into") || words[i].equals("update")) {
+				return verb + " " + words[i + 1];
+			}
+		}
+		return verb;
+	}
+
+	/***
+	 * @param gauges
+	 *            Values read at the time of the scrape, by metric name.
+	 * @return Every metric in the Prometheus text format.
+	 */
+	public static String scrape(Map<String, ? extends Number> gauges) {
+		StringBuilder sb = new StringBuilder(16 * 1024);
+		for (Family family : FAMILIES) {
+			family.write(sb);
+		}
+
+		List<String> names = new ArrayList<String>(gauges.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			header(sb, name, null, "gauge");
+			sample(sb, name, "", null, gauges.get(name));
+		}
+		return sb.toString();
+	}
+
+	private static void header(StringBuilder sb, String name, String help, String type) {
+		if (help != null) {
+			sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		}
+		sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void sample(StringBuilder sb, String name, String labels, String extra, Number value) {
+		sb.append(name);
+		if (!labels.isEmpty() || extra != null) {
+			sb.append('{').append(labels);
+			if (extra != null) {
+				if (!labels.isEmpty()) {
+					sb.append(',');
+				}
+				sb.append(extra);
+			}
+			sb.append('}');
+		}
+		sb.append(' ').append(value).append('\n');
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static boolean isNumber(String s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (!Character.isDigit(s.charAt(i))) {
+				return false;
+			}
+		}
+		return start < end;
+	}
+}
@@ -0,0 +1,490 @@
+package poker;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+
+/***
+ * Pushes story state to clients subscribed through Server-Sent Events. A
+ * story's state is only sent to a subscriber when its version differs from
+ * the one that subscriber last received.
+ *
+ * Clients without them long-poll: a poll names the last version it saw and
+ * is held, without a thread, until a newer state exists or
+ * -Dpoker.poll.timeout milliseconds (25000 by default) pass.
+ *
+ * Servlet 3.0 has no non-blocking output, so frames and answers are written
+ * by -Dpoker.events.writers threads. Each subscriber queues at most
+ * -Dpoker.events.queue frames and has one write in progress at a time. A
+ * subscriber that falls that far behind, or whose write blocks for longer
+ * than -Dpoker.events.writeTimeout milliseconds, is closed and reconnects.
+ */
+public class PokerEvents {
+	private static final Charset	UTF8				= Charset.forName("UTF-8");
+	private static final long		HEARTBEAT_SECONDS	= 15;
+	private static final long		POLL_TIMEOUT		= Long.getLong("poker.poll.timeout", 25000);
+	private static final int		QUEUED_FRAMES		= Integer.getInteger("poker.events.queue", 64);
+	private static final long		WRITE_TIMEOUT		= Long.getLong("poker.events.writeTimeout", 10000);
+	private static final int		WRITERS				= Integer.getInteger("poker.events.writers", 16);
+
+	private final PokerState		state;
+	private final GameSessions		sessions;
+
+	private final ConcurrentHashMap<Integer, List<Subscriber>>	subscribers	= new ConcurrentHashMap<Integer, List<Subscriber>>();
+	private final ConcurrentHashMap<Integer, List<Poll>>		polls		= new ConcurrentHashMap<Integer, List<Poll>>();
+
+	// All state is computed on this thread, which never writes to a client
+	private final ScheduledExecutorService	executor	= Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "poker-events");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// Writes to clients, a client that does not read holds one of these
+	// threads until its write times out
+	private final ExecutorService			writers		= Executors.newFixedThreadPool(WRITERS, new ThreadFactory() {
+		private final AtomicInteger	count	= new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "poker-events-writer-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	public PokerEvents(PokerState state, GameSessions sessions) {
+		this.state = state;
+		this.sessions = sessions;
+
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				heartbeat();
+			}
+		}, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/***
+	 * Registers an asynchronous response as an event stream and sends it the
+	 * current state of every story in the task. The subscribed user counts
+	 * as playing for as long as the stream is open.
+	 *
+	 * @param task_id
+	 * @param user_id
+	 * @param context
+	 */
+	public void subscribe(final int task_id, int user_id, AsyncContext context) {
+		final Subscriber subscriber = new Subscriber(task_id, user_id, context);
+
+		context.setTimeout(0);
+		context.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				unsubscribe(subscriber);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				subscriber.close();
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				subscriber.close();
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+
+		listFor(subscribers, task_id).add(subscriber);
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Map.Entry<Integer, StoryState> entry : state.task(task_id).entrySet()) {
+					push(subscriber, entry.getKey(), entry.getValue());
+				}
+			}
+		});
+	}
+
+	/***
+	 * Holds a poll that found nothing new until the task, or one of its
+	 * stories, moves past the given version. It is then answered with the
+	 * changed state, with 404 Not Found if the story is deleted, or with 204
+	 * No Content when it times out.
+	 *
+	 * @param task_id
+	 * @param story_id
+	 *            The story polled for, or -1 for every story of the task.
+	 * @param since
+	 *            The last version the client saw.
+	 * @param context
+	 */
+	public void await(int task_id, int story_id, long since, AsyncContext context) {
+		final Poll poll = new Poll(task_id, story_id, since, context);
+
+		context.setTimeout(POLL_TIMEOUT);
+		context.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) throws IOException {
+				unregister(poll);
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				poll.answer(HttpServletResponse.SC_NO_CONTENT, null);
+			}
+
+			@Override
+			public void onError(AsyncEvent event) throws IOException {
+				unregister(poll);
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) throws IOException {
+			}
+		});
+
+		listFor(polls, task_id).add(poll);
+
+		// A change made before the poll was registered has not woken it
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				check(poll);
+			}
+		});
+	}
+
+	/***
+	 * Notifies every subscriber and poll of a task that the given story may
+	 * have changed, e.g. after a vote, an iteration bump or a consensus.
+	 *
+	 * @param task_id
+	 * @param story_id
+	 */
+	public void storyChanged(final int task_id, final int story_id) {
+		final List<Subscriber> list = subscribers.get(task_id);
+		final List<Poll> waiting = polls.get(task_id);
+		if ((list == null || list.isEmpty()) && (waiting == null || waiting.isEmpty())) {
+			return;
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (list != null) {
+					for (Subscriber subscriber : list) {
+						push(subscriber, story_id);
+					}
+				}
+				if (waiting != null) {
+					for (Poll poll : waiting) {
+						if (poll.story_id < 0 || poll.story_id == story_id) {
+							check(poll);
+						}
+					}
+				}
+			}
+		});
+	}
+
+	/***
+	 * Notifies every subscriber and poll of a task that any of its stories
+	 * may have changed, e.g. after its team, deck or stories were edited.
+	 *
+	 * @param task_id
+	 */
+	public void taskChanged(final int task_id) {
+		final List<Subscriber> list = subscribers.get(task_id);
+		final List<Poll> waiting = polls.get(task_id);
+		if ((list == null || list.isEmpty()) && (waiting == null || waiting.isEmpty())) {
+			return;
+		}
+
+		// Loads the edited task on the calling thread rather than this one
+		final Map<Integer, StoryState> states = state.task(task_id);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (list != null) {
+					for (Subscriber subscriber : list) {
+						for (Map.Entry<Integer, StoryState> entry : states.entrySet()) {
+							push(subscriber, entry.getKey(), entry.getValue());
+						}
+					}
+				}
+				if (waiting != null) {
+					for (Poll poll : waiting) {
+						check(poll);
+					}
+				}
+			}
+		});
+	}
+
+	private void check(Poll poll) {
+		if (poll.story_id < 0) {
+			String json = state.taskJson(poll.task_id, poll.since);
+			if (json != null) {
+				poll.answer(json);
+			}
+			return;
+		}
+
+		StoryState storyState = state.story(poll.task_id, poll.story_id);
+		if (storyState == null) {
+			// The story was deleted while the poll was held
+			poll.answer(HttpServletResponse.SC_NOT_FOUND, null);
+		} else if (storyState.getVersion() > poll.since) {
+			poll.answer(storyState.toJson());
+		}
+	}
+
+	private static <T> List<T> listFor(ConcurrentHashMap<Integer, List<T>> map, int task_id) {
+		List<T> list = map.get(task_id);
+		if (list == null) {
+			List<T> created = new CopyOnWriteArrayList<T>();
+			list = map.putIfAbsent(task_id, created);
+			if (list == null) {
+				list = created;
+			}
+		}
+		return list;
+	}
+
+	private void push(Subscriber subscriber, int story_id) {
+		if (subscriber.closed) {
+			return;
+		}
+
+		push(subscriber, story_id, state.story(subscriber.task_id, story_id));
+	}
+
+	private void push(Subscriber subscriber, int story_id, StoryState storyState) {
+		if (storyState == null) {
+			return;
+		}
+
+		Long previous = subscriber.sent.put(story_id, storyState.getVersion());
+		if (previous != null && previous == storyState.getVersion()) {
+			return;
+		}
+
+		subscriber.send("event: story\ndata: {\"story\":" + story_id + ",\"state\":" + storyState.toJson() + "}\n\n");
+	}
+
+	private void heartbeat() {
+		long now = System.currentTimeMillis();
+		for (List<Subscriber> list : subscribers.values()) {
+			for (Subscriber subscriber : list) {
+				if (subscriber.isStuck(now)) {
+					subscriber.close();
+				} else {
+					subscriber.send(": ping\n\n");
+					seen(subscriber);
+				}
+			}
+		}
+	}
+
+	// A subscriber makes no requests while it listens
+	private void seen(Subscriber subscriber) {
+		GameSession session = sessions.getLoaded(subscriber.task_id);
+		if (session != null) {
+			session.seen(subscriber.user_id);
+		}
+	}
+
+	private void unsubscribe(Subscriber subscriber) {
+		subscriber.closed = true;
+
+		List<Subscriber> list = subscribers.get(subscriber.task_id);
+		if (list != null) {
+			list.remove(subscriber);
+		}
+	}
+
+	private void unregister(Poll poll) {
+		poll.answered.set(true);
+
+		List<Poll> list = polls.get(poll.task_id);
+		if (list != null) {
+			list.remove(poll);
+		}
+	}
+
+	private class Poll {
+		private final int				task_id;
+		private final int				story_id;
+		private final long				since;
+		private final AsyncContext		context;
+		private final AtomicBoolean		answered	= new AtomicBoolean();
+
+		Poll(int task_id, int story_id, long since, AsyncContext context) {
+			this.task_id = task_id;
+			this.story_id = story_id;
+			this.since = since;
+			this.context = context;
+		}
+
+		void answer(String json) {
+			answer(HttpServletResponse.SC_OK, json);
+		}
+
+		/***
+		 * Answers the poll once, with the given state or only a status. The
+		 * answer is written by a writer thread.
+		 */
+		void answer(final int status, final String json) {
+			if (!answered.compareAndSet(false, true)) {
+				return;
+			}
+			unregister(this);
+
+			writers.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(status, json);
+				}
+			});
+		}
+
+		private void write(int status, String json) {
+			try {
+				HttpServletResponse response = (HttpServletResponse) context.getResponse();
+				if (json == null) {
+					response.setStatus(status);
+				} else {
+					byte[] body = json.getBytes(UTF8);
+					response.setContentType("application/json; charset=UTF-8");
+					response.setContentLength(body.length);
+					response.getOutputStream().write(body);
+				}
+			} catch (IOException | IllegalStateException e) {
+				// the client went away
+			} finally {
+				try {
+					context.complete();
+				} catch (IllegalStateException e) {
+					// already completed
+				}
+			}
+		}
+	}
+
+	private class Subscriber {
+		private final int						task_id;
+		private final int						user_id;
+		private final AsyncContext				context;
+		private final Map<Integer, Long>		sent		= new HashMap<Integer, Long>();
+		private final BlockingQueue<String>		frames		= new ArrayBlockingQueue<String>(QUEUED_FRAMES);
+		private final AtomicBoolean				draining	= new AtomicBoolean();
+		// When the write in progress started, 0 if there is none
+		private volatile long					writingSince;
+		private volatile boolean				closed		= false;
+
+		Subscriber(int task_id, int user_id, AsyncContext context) {
+			this.task_id = task_id;
+			this.user_id = user_id;
+			this.context = context;
+		}
+
+		/***
+		 * Queues a frame, to be written by a writer thread.
+		 */
+		void send(String frame) {
+			if (closed) {
+				return;
+			}
+
+			if (!frames.offer(frame)) {
+				// Too far behind to catch up, the client reconnects
+				close();
+				return;
+			}
+			drain();
+		}
+
+		private void drain() {
+			if (!draining.compareAndSet(false, true)) {
+				return;
+			}
+
+			writers.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						String frame;
+						while (!closed && (frame = frames.poll()) != null) {
+							write(frame);
+						}
+					} finally {
+						draining.set(false);
+					}
+
+					// A frame queued after the last poll found no one draining
+					if (!closed && !frames.isEmpty()) {
+						drain();
+					}
+				}
+			});
+		}
+
+		private void write(String frame) {
+			writingSince = System.currentTimeMillis();
+			try {
+				ServletResponse response = context.getResponse();
+				ServletOutputStream out = response.getOutputStream();
+				out.write(frame.getBytes(UTF8));
+				response.flushBuffer();
+			} catch (IOException | IllegalStateException e) {
+				close();
+			} finally {
+				writingSince = 0;
+			}
+		}
+
+		boolean isStuck(long now) {
+			long since = writingSince;
+			return since != 0 && now - since > WRITE_TIMEOUT;
+		}
+
+		void close() {
+			unsubscribe(this);
+			frames.clear();
+			try {
+				context.complete();
+			} catch (IllegalStateException e) {
+				// already completed
+			}
+		}
+	}
+}
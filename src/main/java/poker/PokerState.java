@@ -0,0 +1,167 @@
+package poker;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import poker.entities.Story;
+import poker.entities.UserEstimate;
+
+/***
+ * Builds the state of a story during a game of poker. The same state is
+ * served to polling clients and pushed to subscribed clients, and is built
+ * again only when the story's version changes.
+ */
+public class PokerState {
+	private static final int		NO_CONSENSUS	= -1;
+	private final GameSessions		sessions;
+
+	public PokerState(GameSessions sessions) {
+		this.sessions = sessions;
+	}
+
+	/***
+	 * @param task_id
+	 * @param story_id
+	 * @return The state of the given story, or null if the story is not part
+	 *         of the task or there is no such task.
+	 */
+	public StoryState story(int task_id, int story_id) {
+		GameSession session = sessions.get(task_id);
+		if (session == null) {
+			return null;
+		}
+
+		synchronized (session) {
+			Story story = session.getStory(story_id);
+			if (story == null) {
+				return null;
+			}
+
+			return get(session, story);
+		}
+	}
+
+	/***
+	 * Gets the state of every story in a task in one pass over the task's
+	 * session instead of running {@link #story(int, int)} once per story.
+	 *
+	 * @param task_id
+	 * @return The state of each story, keyed by story id in the task's order.
+	 */
+	public Map<Integer, StoryState> task(int task_id) {
+		Map<Integer, StoryState> states = new LinkedHashMap<Integer, StoryState>();
+		GameSession session = sessions.get(task_id);
+		if (session == null) {
+			return states;
+		}
+
+		synchronized (session) {
+			for (Story story : session.getStories()) {
+				states.put(story.getId(), get(session, story));
+			}
+		}
+
+		return states;
+	}
+
+	/***
+	 * @param task_id
+	 * @return The state of every story in a task as one JSON object keyed by
+	 *         story id, made of each story's serialized state.
+	 */
+	public String taskJson(int task_id) {
+		String json = taskJson(task_id, -1);
+		return json == null ? "{}" : json;
+	}
+
+	/***
+	 * @param task_id
+	 * @param since
+	 *            A version of the task's state.
+	 * @return The state of the stories changed after that version, as in
+	 *         {@link #taskJson(int)}, or null if none did.
+	 */
+	public String taskJson(int task_id, long since) {
+		GameSession session = sessions.get(task_id);
+		if (session == null || session.getVersion() <= since) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		sb.append('{');
+		for (Map.Entry<Integer, StoryState> entry : task(task_id).entrySet()) {
+			if (entry.getValue().getVersion() <= since) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append('"').append(entry.getKey()).append("\":").append(entry.getValue().toJson());
+		}
+		return sb.length() == 1 ? null : sb.append('}').toString();
+	}
+
+	private StoryState get(GameSession session, Story story) {
+		StoryState state = session.getCachedState(story.getId());
+		if (state == null) {
+			state = build(session, story);
+			session.cacheState(story.getId(), state);
+		}
+		return state;
+	}
+
+	/***
+	 * Reads the state of a story from its tally. Consensus is decided when
+	 * votes are cast, so building the state never changes anything.
+	 */
+	private StoryState build(GameSession session, Story story) {
+		int story_id = story.getId();
+		int iteration = story.getIteration();
+		StoryTally tally = session.getTally(story_id);
+
+		// Previous iteration, by estimate
+		int[][] votes = new int[0][];
+		if (iteration > 0) {
+			List<UserEstimate> previousEstimations = session.getVotes(story_id, iteration - 1);
+			Collections.sort(previousEstimations, new UserComparer());
+
+			votes = new int[previousEstimations.size()][];
+			for (int i = 0; i < votes.length; i++) {
+				UserEstimate ue = previousEstimations.get(i);
+				votes[i] = new int[] { ue.getUser().getId(), ue.getEstimate().getId() };
+			}
+		}
+
+		StoryState.Count[] counts = new StoryState.Count[tally.getOutcomeSize()];
+		for (int rank = 0; rank < counts.length; rank++) {
+			counts[rank] = new StoryState.Count(tally.getOutcomeEstimate(rank), tally.getOutcomeVotes(rank),
+					StoryTally.getColour(rank));
+		}
+
+		// Current iteration, by user
+		List<UserEstimate> current = session.getVotes(story_id, iteration);
+		int[] voters = new int[current.size()];
+		for (int i = 0; i < voters.length; i++) {
+			voters[i] = current.get(i).getUser().getId();
+		}
+
+		return new StoryState(session.getStoryVersion(story_id), story.getConsensus() != NO_CONSENSUS, voters, votes,
+				counts);
+	}
+
+	// Sort estimates
+	private static class UserComparer implements Comparator<UserEstimate> {
+
+		@Override
+		public int compare(UserEstimate lhs, UserEstimate rhs) {
+			int l = lhs.getEstimate().getId();
+			int r = rhs.getEstimate().getId();
+
+			return l - r;
+		}
+
+	}
+}
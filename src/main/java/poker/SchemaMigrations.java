@@ -0,0 +1,172 @@
+package poker;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Brings the database schema up to date. Every migration runs once, in its
+ * own transaction, and is recorded in the schema_version table. Existing
+ * data is never dropped.
+ *
+ * To change the schema, append a migration; never edit one that has shipped.
+ */
+public class SchemaMigrations {
+	private static final Logger		log			= LoggerFactory.getLogger(SchemaMigrations.class);
+
+	private static final String[][]	MIGRATIONS	= {
+			// 1: the initial tables. Databases created before migrations
+			// existed already have them, which is why they are created only
+			// if missing.
+			{
+			// this table will store the individual tasks
+			"create table if not exists tasks ( " + "id integer primary key autoincrement, "
+			// task's name
+					+ "name text, "
+					// task's description
+					+ "description text, "
+					// When it was created
+					+ "created_at datetime DEFAULT (datetime('now', 'localtime')), "
+					// When it was published
+					+ "published_at datetime " + ")",
+
+			// This table will store the individual estimations created by
+			// each task
+			"create table if not exists estimations (" + "id integer primary key autoincrement, "
+			// task.id
+					+ "task_id integer, "
+					// the complexity symbol (can be special, like coffee mug)
+					// [what will be shown on the card]
+					+ "complexity_symbol text, "
+					// the unit, we should create an enum for this that uses the
+					// same integer values
+					+ "unit integer DEFAULT 1, "
+					// the value of this complexity in its unit
+					+ "unit_value REAL " + ")",
+
+			// This table will store the individual users
+			"create table if not exists users ( " + "id integer primary key autoincrement, "
+			// user's name
+					+ "name text)",
+
+			// This table will store the team of users for each task
+			"create table if not exists task_team ( " + "id integer primary key autoincrement, "
+			// users.id
+					+ "user_id integer, "
+					// task.id
+					+ "task_id integer " + ")",
+
+			// This table will store the individual stories
+			"create table if not exists stories ( " + "id integer primary key autoincrement, "
+			// tasks.id
+					+ "task_id integer, "
+					// story's name
+					+ "name text, "
+					// story's description
+					+ "description text, "
+					// will be set to the final value after consensus has been
+					// reached
+					+ "consensus integer DEFAULT -1,"
+					// current iteration, so we can figure out consensus and
+					// how long it took etc. etc.
+					+ "iteration integer DEFAULT 0)",
+
+			// This table will store the estimations for each user
+			"create table if not exists story_user_estimations ( " + "id integer primary key autoincrement, "
+			// story.id
+					+ "story_id integer, "
+					// users.id
+					+ "user_id integer, "
+					// estimations.id
+					+ "estimation_id integer, "
+					// the value of the current iteration of the story id when
+					// insert (so we can keep track of during which iteration
+					// the estimate was made)
+					+ "story_iteration integer" + ")" },
+
+			// 2: indexes for the lookups done on every poll and page. The
+			// votes index covers the per-story and per-iteration queries.
+			{
+			"create index if not exists story_user_estimations_story "
+					+ "on story_user_estimations (story_id, story_iteration, user_id, estimation_id)",
+			"create index if not exists task_team_task on task_team (task_id, user_id)",
+			"create index if not exists stories_task on stories (task_id)",
+			"create index if not exists estimations_task on estimations (task_id)" },
+
+			// 3: one vote per user and iteration of a story. Duplicates left
+			// by retried votes are dropped, keeping the first.
+			{
+			"delete from story_user_estimations where id not in (select min(id) "
+					+ "from story_user_estimations group by story_id, user_id, story_iteration)",
+			"create unique index if not exists story_user_estimations_vote "
+					+ "on story_user_estimations (story_id, user_id, story_iteration)" } };
+
+	/***
+	 * @return The schema version of a database with every migration applied.
+	 */
+	public static int latestVersion() {
+		return MIGRATIONS.length;
+	}
+
+	/***
+	 * Applies every migration newer than the database's schema version.
+	 *
+	 * @param connection
+	 *            The writer connection, in auto-commit mode.
+	 * @return The schema version of the database afterwards.
+	 * @throws SQLException
+	 */
+	public static int migrate(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		statement.setQueryTimeout(30); // timeout after 30 seconds
+
+		try {
+			statement.execute("create table if not exists schema_version ( " + "version integer primary key, "
+					+ "applied_at datetime DEFAULT (datetime('now', 'localtime')))");
+
+			int version = 0;
+			try (ResultSet res = statement.executeQuery("select max(version) from schema_version")) {
+				if (res.next()) {
+					version = res.getInt(1);
+				}
+			}
+
+			for (int i = version; i < MIGRATIONS.length; i++) {
+				apply(connection, statement, i + 1, MIGRATIONS[i]);
+				version = i + 1;
+			}
+
+			return version;
+		} finally {
+			statement.close();
+		}
+	}
+
+	private static void apply(Connection connection, Statement statement, int version, String[] migration)
+			throws SQLException {
+		connection.setAutoCommit(false);
+		try {
+			for (String sql : migration) {
+				statement.execute(sql);
+			}
+
+			PreparedStatement ps = connection.prepareStatement("insert into schema_version (version) values (?)");
+			ps.setInt(1, version);
+			ps.executeUpdate();
+			ps.close();
+
+			connection.commit();
+			log.info("Applied schema migration {}", version);
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package poker;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/***
+ * Prepared statements of one connection, keyed by their SQL, so every query
+ * is compiled by SQLite once per connection instead of once per call.
+ *
+ * A cache is only ever used by the thread leasing its connection, the
+ * counters are shared by all caches of a pool.
+ *
+ * Statements run one after the other on a leased connection, so the time of
+ * each is taken from the moment it is looked up to the next lookup or the
+ * end of the lease, see {@link #finish()}. It covers binding, execution and
+ * reading the results, and is recorded in {@link Metrics#QUERIES}.
+ */
+public class StatementCache {
+	private static final Logger				log			= LoggerFactory.getLogger(StatementCache.class);
+
+	private final Connection				connection;
+	private final Map<String, Statement>	statements	= new HashMap<String, Statement>();
+	private final AtomicLong				hits;
+	private final AtomicLong				misses;
+
+	// The statement being run and when it was looked up
+	private Statement						running;
+	private long							startedAt;
+
+	private static class Statement {
+		final PreparedStatement	ps;
+		final Metrics.Histogram	duration;
+
+		Statement(PreparedStatement ps, Metrics.Histogram duration) {
+			this.ps = ps;
+			this.duration = duration;
+		}
+	}
+
+	public StatementCache(Connection connection, AtomicLong hits, AtomicLong misses) {
+		this.connection = connection;
+		this.hits = hits;
+		this.misses = misses;
+	}
+
+	/***
+	 * @param sql
+	 * @return The cached statement for the SQL, prepared on first use. Its
+	 *         result sets must be closed before it is executed again.
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		finish();
+
+		Statement statement = statements.get(sql);
+		if (statement != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			statement = new Statement(connection.prepareStatement(sql), Metrics.QUERIES.labels(Metrics
+					.queryName(sql)));
+			statements.put(sql, statement);
+		}
+
+		running = statement;
+		startedAt = System.nanoTime();
+		return statement.ps;
+	}
+
+	/***
+	 * Records the time of the statement looked up last, if any. Called when
+	 * the connection's lease ends.
+	 */
+	public void finish() {
+		if (running != null) {
+			running.duration.since(startedAt);
+			running = null;
+		}
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public void close() {
+		for (Statement statement : statements.values()) {
+			try {
+				statement.ps.close();
+			} catch (SQLException e) {
+				log.warn("Could not close statement", e);
+			}
+		}
+		statements.clear();
+	}
+}
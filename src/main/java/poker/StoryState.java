@@ -0,0 +1,99 @@
+package poker;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+/***
+ * The state of a story during a game of poker, as sent to the players' pages,
+ * which render it. It is the same for every member of the team: a page finds
+ * whether its user may still vote in {@link #voters}.
+ *
+ * A state never changes once built, it is built once per version of the story
+ * and serialized once, however many players ask for it.
+ */
+public final class StoryState {
+	/***
+	 * The serializer for every JSON response.
+	 */
+	public static final Gson	GSON	= new GsonBuilder().disableHtmlEscaping().create();
+
+	/***
+	 * The votes an estimate got in the previous iteration.
+	 */
+	public static final class Count {
+		private final int		estimate;
+		private final int		votes;
+		private final String	colour;
+
+		Count(int estimate, int votes, String colour) {
+			this.estimate = estimate;
+			this.votes = votes;
+			this.colour = colour;
+		}
+
+		public int getEstimate() {
+			return estimate;
+		}
+
+		public int getVotes() {
+			return votes;
+		}
+
+		public String getColour() {
+			return colour;
+		}
+	}
+
+	private final long		version;
+	private final boolean	consensus;
+	// The users that voted in the current iteration
+	private final int[]		voters;
+	// The votes of the previous iteration as [user id, estimate id], ordered
+	// by estimate
+	private final int[][]	votes;
+	// The estimates of the previous iteration, most voted first
+	private final Count[]	tally;
+
+	private transient String	json;
+
+	StoryState(long version, boolean consensus, int[] voters, int[][] votes, Count[] tally) {
+		this.version = version;
+		this.consensus = consensus;
+		this.voters = voters;
+		this.votes = votes;
+		this.tally = tally;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public boolean isConsensus() {
+		return consensus;
+	}
+
+	/***
+	 * @param user_id
+	 * @return true if the user has not voted in the current iteration yet.
+	 */
+	public boolean canVote(int user_id) {
+		for (int voter : voters) {
+			if (voter == user_id) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/***
+	 * @return The state as JSON, serialized on the first call only.
+	 */
+	public String toJson() {
+		String result = json;
+		if (result == null) {
+			result = GSON.toJson(this);
+			json = result;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,202 @@
+package poker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import poker.entities.UserEstimate;
+
+/***
+ * Running count of the votes on one story. Votes are counted as they arrive;
+ * when the last vote of an iteration is counted the outcome of that
+ * iteration is decided once: whether the team agreed, and the estimates ranked
+ * by how many voted for them. Polls only read the outcome.
+ *
+ * Not thread-safe, it is guarded by its {@link GameSession}.
+ */
+class StoryTally {
+	public static final int	NO_CONSENSUS	= -1;
+
+	private int							iteration;
+	private final Set<Integer>			voters	= new HashSet<Integer>();
+	private final Map<Integer, Integer>	counts	= new HashMap<Integer, Integer>();
+
+	// The outcome of the last finished iteration: its estimates, most voted
+	// first, and their votes
+	private int[]	ranked		= new int[0];
+	private int[]	rankedVotes	= new int[0];
+	private int		consensus	= NO_CONSENSUS;
+
+	StoryTally(int iteration) {
+		this.iteration = iteration;
+	}
+
+	/***
+	 * Rebuilds the tally of a story loaded from the database. If the current
+	 * votes already reach the team size, that iteration is decided and the
+	 * tally moves on to the next one, see {@link #getIteration()}.
+	 *
+	 * @param iteration
+	 *            The current iteration of the story.
+	 * @param previous
+	 *            The votes of the previous iteration, decided again.
+	 * @param current
+	 *            The votes of the current iteration so far.
+	 * @param teamSize
+	 */
+	static StoryTally restore(int iteration, List<UserEstimate> previous, List<UserEstimate> current, int teamSize) {
+		StoryTally tally = new StoryTally(iteration);
+		if (!previous.isEmpty()) {
+			for (UserEstimate ue : previous) {
+				tally.count(ue.getUser().getId(), ue.getEstimate().getId());
+			}
+			tally.decide(teamSize);
+			tally.voters.clear();
+			tally.counts.clear();
+		}
+
+		for (UserEstimate ue : current) {
+			tally.count(ue.getUser().getId(), ue.getEstimate().getId());
+		}
+		// Everyone voted but the iteration did not end, it ends now
+		if (teamSize > 0 && tally.voters.size() >= teamSize) {
+			tally.advance(teamSize);
+		}
+		return tally;
+	}
+
+	int getIteration() {
+		return iteration;
+	}
+
+	/***
+	 * @return The number of users that voted in the current iteration.
+	 */
+	int getVoteCount() {
+		return voters.size();
+	}
+
+	boolean hasVoted(int user_id) {
+		return voters.contains(user_id);
+	}
+
+	/***
+	 * @param estimate_id
+	 * @return The number of votes on the estimate in the current iteration.
+	 */
+	int getCount(int estimate_id) {
+		Integer count = counts.get(estimate_id);
+		return count == null ? 0 : count;
+	}
+
+	/***
+	 * Counts a vote of the current iteration.
+	 *
+	 * @param user_id
+	 * @param estimate_id
+	 * @param teamSize
+	 * @return true if it was the last vote, in which case the iteration has
+	 *         been decided and the next one started.
+	 */
+	boolean add(int user_id, int estimate_id, int teamSize) {
+		if (!count(user_id, estimate_id) || voters.size() < teamSize) {
+			return false;
+		}
+
+		advance(teamSize);
+		return true;
+	}
+
+	/***
+	 * @return The estimate everyone voted for in the last finished iteration,
+	 *         or {@link #NO_CONSENSUS}.
+	 */
+	int getConsensus() {
+		return consensus;
+	}
+
+	/***
+	 * @return The number of different estimates voted for in the last
+	 *         finished iteration.
+	 */
+	int getOutcomeSize() {
+		return ranked.length;
+	}
+
+	/***
+	 * @param rank
+	 *            0 for the most voted estimate of the last finished iteration.
+	 * @return The estimate at that rank.
+	 */
+	int getOutcomeEstimate(int rank) {
+		return ranked[rank];
+	}
+
+	/***
+	 * @param rank
+	 * @return The number of votes on the estimate at that rank.
+	 */
+	int getOutcomeVotes(int rank) {
+		return rankedVotes[rank];
+	}
+
+	/***
+	 * @param rank
+	 * @return The label class of the estimate at that rank: the most voted one
+	 *         is green, then yellow, then red.
+	 */
+	static String getColour(int rank) {
+		switch (rank) {
+		case 0:
+			return "label-success";
+		case 1:
+			return "label-warning";
+		case 2:
+			return "label-danger";
+		default:
+			return "label-inverse";
+		}
+	}
+
+	private boolean count(int user_id, int estimate_id) {
+		if (!voters.add(user_id)) {
+			return false;
+		}
+		counts.put(estimate_id, getCount(estimate_id) + 1);
+		return true;
+	}
+
+	private void advance(int teamSize) {
+		decide(teamSize);
+		iteration++;
+		voters.clear();
+		counts.clear();
+	}
+
+	private void decide(int teamSize) {
+		List<Map.Entry<Integer, Integer>> buckets = new ArrayList<Map.Entry<Integer, Integer>>(counts.entrySet());
+		// Most votes first, ties by estimate id so every poll sees the same
+		Collections.sort(buckets, new Comparator<Map.Entry<Integer, Integer>>() {
+			@Override
+			public int compare(Map.Entry<Integer, Integer> lhs, Map.Entry<Integer, Integer> rhs) {
+				int byCount = rhs.getValue() - lhs.getValue();
+				return byCount != 0 ? byCount : lhs.getKey() - rhs.getKey();
+			}
+		});
+
+		ranked = new int[buckets.size()];
+		rankedVotes = new int[buckets.size()];
+		for (int i = 0; i < buckets.size(); i++) {
+			ranked[i] = buckets.get(i).getKey();
+			rankedVotes[i] = buckets.get(i).getValue();
+		}
+
+		consensus = buckets.size() == 1 && buckets.get(0).getValue() >= teamSize ? buckets.get(0).getKey()
+				: NO_CONSENSUS;
+	}
+}
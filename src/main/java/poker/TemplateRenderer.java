@@ -0,0 +1,233 @@
+package poker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import spark.Request;
+import spark.Response;
+import freemarker.cache.MruCacheStorage;
+import freemarker.template.Configuration;
+import freemarker.template.DefaultObjectWrapper;
+import freemarker.template.Template;
+import freemarker.template.TemplateException;
+
+/***
+ * Renders the FreeMarker templates of the pages.
+ *
+ * Templates are compiled once and kept; FreeMarker only checks the files for
+ * changes when the update delay (-Dpoker.templates.updateDelay, in seconds)
+ * has passed. It is never checked by default, use 0 while editing templates.
+ *
+ * Pages whose data rarely changes can be rendered through
+ * {@link #render(String, long, String, Model, Request, Response)}, which
+ * serves the last output while the version of the data is the same. This
+ * fragment cache is enabled with -Dpoker.fragments=true.
+ *
+ * Pages are written to the response through {@link HttpOutput} instead of
+ * being returned as Strings, unless started with
+ * -Dpoker.output.streaming=false.
+ */
+public class TemplateRenderer {
+	private static final Logger	log					= LoggerFactory.getLogger(TemplateRenderer.class);
+
+	private static final int	UPDATE_DELAY		= Integer.getInteger("poker.templates.updateDelay",
+															Integer.MAX_VALUE);
+	private static final boolean	FRAGMENTS			= Boolean.getBoolean("poker.fragments");
+	private static final int		MAX_FRAGMENTS		= Integer.getInteger("poker.fragments.max", 256);
+	private static final boolean	STREAMING			= Boolean.parseBoolean(System.getProperty(
+																"poker.output.streaming", "true"));
+
+	/***
+	 * Builds the data-model of a page, only called when the page has to be
+	 * rendered.
+	 */
+	public interface Model {
+		Map<String, Object> build();
+	}
+
+	private final Configuration			cfg			= new Configuration();
+	private final Map<String, Object>	globals		= new HashMap<String, Object>();
+	private final Map<String, Fragment>	fragments	= new LinkedHashMap<String, Fragment>(16, 0.75f, true) {
+		private static final long	serialVersionUID	= 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+			return size() > MAX_FRAGMENTS;
+		}
+	};
+
+	private final AtomicLong	fragmentHits	= new AtomicLong();
+	private final AtomicLong	fragmentMisses	= new AtomicLong();
+
+	// Render times by template name
+	private final ConcurrentHashMap<String, Metrics.Histogram>	renderTimes	= new ConcurrentHashMap<String, Metrics.Histogram>();
+
+	public TemplateRenderer(String templatePath) {
+		try {
+			cfg.setDirectoryForTemplateLoading(new File(templatePath));
+		} catch (IOException e) {
+			log.error("Could not load templates from {}", templatePath, e);
+		}
+		cfg.setObjectWrapper(new DefaultObjectWrapper());
+		cfg.setTemplateUpdateDelay(UPDATE_DELAY);
+		// Ids go into URLs and scripts, 1234 must not become 1,234
+		cfg.setNumberFormat("0.######");
+		// Every page template stays compiled
+		cfg.setCacheStorage(new MruCacheStorage(64, 256));
+	}
+
+	/***
+	 * Adds a variable to the data-model of every page.
+	 *
+	 * @param name
+	 * @param value
+	 */
+	public void setGlobal(String name, Object value) {
+		globals.put(name, value);
+	}
+
+	public String render(String filename, Map<String, Object> root) {
+		try {
+
+			/* Get or create a template */
+			Template temp = cfg.getTemplate(filename);
+
+			/* Merge data-model with template */
+			root.putAll(globals);
+
+			Writer out = new StringWriter();
+			long start = System.nanoTime();
+			temp.process(root, out);
+			renderTime(filename).since(start);
+			return out.toString();
+
+		} catch (IOException | TemplateException e) {
+			log.error("Could not render template {}", filename, e);
+		}
+
+		return "Hello World...";
+	}
+
+	/***
+	 * Renders a page into the response.
+	 *
+	 * @param filename
+	 * @param root
+	 * @param request
+	 * @param response
+	 * @return What the route has to return: an empty String when the page was
+	 *         streamed, otherwise the page.
+	 */
+	public String render(String filename, Map<String, Object> root, Request request, Response response) {
+		if (!STREAMING) {
+			return render(filename, root);
+		}
+
+		HttpOutput out = HttpOutput.open(request, response, "text/html");
+		try {
+
+			Template temp = cfg.getTemplate(filename);
+			root.putAll(globals);
+			long start = System.nanoTime();
+			temp.process(root, out);
+			renderTime(filename).since(start);
+
+		} catch (IOException | TemplateException e) {
+			log.error("Could not render template {}", filename, e);
+		} finally {
+			close(out);
+		}
+		return "";
+	}
+
+	/***
+	 * Renders a page, or returns the output of the last rendering of the same
+	 * key if its data still has the same version.
+	 *
+	 * @param key
+	 *            Identifies the page and its parameters.
+	 * @param version
+	 *            The version of the data shown on the page, read before the
+	 *            data-model is built.
+	 * @param filename
+	 * @param model
+	 * @param request
+	 * @param response
+	 * @return What the route has to return, see
+	 *         {@link #render(String, Map, Request, Response)}.
+	 */
+	public String render(String key, long version, String filename, Model model, Request request,
+			Response response) {
+		if (!FRAGMENTS) {
+			return render(filename, model.build(), request, response);
+		}
+
+		Fragment fragment;
+		synchronized (fragments) {
+			fragment = fragments.get(key);
+		}
+		if (fragment != null && fragment.version == version) {
+			fragmentHits.incrementAndGet();
+			return write(fragment.html, request, response);
+		}
+
+		fragmentMisses.incrementAndGet();
+		String html = render(filename, model.build());
+		synchronized (fragments) {
+			fragments.put(key, new Fragment(version, html));
+		}
+		return write(html, request, response);
+	}
+
+	private String write(String html, Request request, Response response) {
+		if (!STREAMING) {
+			return html;
+		}
+		return HttpOutput.send(request, response, "text/html", html);
+	}
+
+	private void close(HttpOutput out) {
+		try {
+			out.close();
+		} catch (IOException e) {
+			log.warn("Could not close response", e);
+		}
+	}
+
+	public long getFragmentHits() {
+		return fragmentHits.get();
+	}
+
+	public long getFragmentMisses() {
+		return fragmentMisses.get();
+	}
+
+	private Metrics.Histogram renderTime(String filename) {
+		Metrics.Histogram histogram = renderTimes.get(filename);
+		if (histogram == null) {
+			histogram = Metrics.RENDERS.labels(filename);
+			renderTimes.put(filename, histogram);
+		}
+		return histogram;
+	}
+
+	private static class Fragment {
+		private final long		version;
+		private final String	html;
+
+		Fragment(long version, String html) {
+			this.version = version;
+			this.html = html;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package poker.entities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/***
+ * The cards a task is estimated with: a symbol per card and the value of
+ * that card in the deck's unit. Special cards like "?" and "coffee" have the
+ * value -1.
+ */
+public class Deck {
+	public static final Deck	FIBONACCI		= new Deck("fibonacci", "Fibonacci", UnitType.PERSON_DAYS,
+			new String[] { "0", "1/2", "1", "2", "3", "5", "8", "13", "20", "40", "100", "?", "coffee" },
+			new float[] { 0, 0.5f, 1f, 2f, 3f, 5f, 8f, 13f, 20f, 40f, 100f, -1, -1 });
+
+	public static final Deck	T_SHIRT			= new Deck("t-shirt", "T-shirt sizes", UnitType.PERSON_DAYS,
+			new String[] { "XS", "S", "M", "L", "XL", "XXL", "?", "coffee" },
+			new float[] { 0.5f, 1f, 3f, 5f, 13f, 40f, -1, -1 });
+
+	public static final Deck	POWERS_OF_TWO	= new Deck("powers-of-two", "Powers of two", UnitType.PERSON_DAYS,
+			new String[] { "0", "1", "2", "4", "8", "16", "32", "64", "?", "coffee" },
+			new float[] { 0, 1f, 2f, 4f, 8f, 16f, 32f, 64f, -1, -1 });
+
+	private static final List<Deck>	DECKS	= Collections.unmodifiableList(Arrays.asList(FIBONACCI, T_SHIRT,
+			POWERS_OF_TWO));
+
+	private final String		id;
+	private final String		name;
+	private final UnitType		unit;
+	private final String[]		symbols;
+	private final float[]		values;
+
+	/***
+	 * Constructor for a custom deck
+	 *
+	 * @param id
+	 * @param name
+	 * @param unit
+	 * @param symbols
+	 * @param values
+	 *            The value of each symbol in unit, -1 for special cards.
+	 */
+	public Deck(String id, String name, UnitType unit, String[] symbols, float[] values) {
+		if (symbols.length != values.length) {
+			throw new IllegalArgumentException("Every card of deck " + id + " needs a value");
+		}
+
+		this.id = id;
+		this.name = name;
+		this.unit = unit;
+		this.symbols = symbols.clone();
+		this.values = values.clone();
+	}
+
+	/***
+	 * @return The predefined decks.
+	 */
+	public static List<Deck> values() {
+		return DECKS;
+	}
+
+	/***
+	 * @param id
+	 * @return The predefined deck with the id, or the Fibonacci deck if there
+	 *         is none.
+	 */
+	public static Deck forId(String id) {
+		for (Deck deck : DECKS) {
+			if (deck.getId().equals(id)) {
+				return deck;
+			}
+		}
+		return FIBONACCI;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public UnitType getUnit() {
+		return unit;
+	}
+
+	public int size() {
+		return symbols.length;
+	}
+
+	/***
+	 * @param task_id
+	 * @return New estimates for every card of this deck, in deck order.
+	 */
+	public List<Estimate> toEstimates(int task_id) {
+		List<Estimate> estimates = new ArrayList<Estimate>(symbols.length);
+		for (int i = 0; i < symbols.length; i++) {
+			estimates.add(new Estimate(task_id, symbols[i], unit, values[i]));
+		}
+		return estimates;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + getId() + ", " + getName() + ", " + Arrays.toString(symbols) + "]";
+	}
+}
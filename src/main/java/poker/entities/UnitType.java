@@ -3,6 +3,9 @@ package poker.entities;
 public enum UnitType {
 	PERSON_HOURS(1), PERSON_DAYS(2), PERSON_WEEK(3), PERSON_MONTHS(4), PERSON_YEARS(5);
 
+	// values() clones the array on every call
+	private static final UnitType[]	VALUES	= values();
+
 	private int code;
 
 	private UnitType(int code) {
@@ -12,4 +15,15 @@ public enum UnitType {
 	public int getCode() {
 		return this.code;
 	}
+
+	/***
+	 * @param code
+	 * @return The unit stored as the code in the database.
+	 */
+	public static UnitType fromCode(int code) {
+		if (code < 1 || code > VALUES.length) {
+			throw new IllegalArgumentException("Unknown unit code " + code);
+		}
+		return VALUES[code - 1];
+	}
 }
@@ -4,12 +4,24 @@ public class UserEstimate {
 	private User user;
 	private Estimate estimate;
 	private String color;
+	private int iteration;
 
 	public UserEstimate(User user, Estimate estimate) {
 		this.setUser(user);
 		this.setEstimate(estimate);
 	}
 
+	/***
+	 * Constructor to use when fetching estimates from several iterations
+	 * @param user
+	 * @param estimate
+	 * @param iteration
+	 */
+	public UserEstimate(User user, Estimate estimate, int iteration) {
+		this(user, estimate);
+		this.setIteration(iteration);
+	}
+
 	public User getUser() {
 		return user;
 	}
@@ -33,5 +45,16 @@ public class UserEstimate {
 	public void setColor(String color) {
 		this.color = color;
 	}
+
+	/***
+	 * @return The story iteration during which the estimate was made.
+	 */
+	public int getIteration() {
+		return iteration;
+	}
+
+	public void setIteration(int iteration) {
+		this.iteration = iteration;
+	}
 	
 }
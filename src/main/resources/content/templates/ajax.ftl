@@ -12,8 +12,7 @@
 	<button type="submit" class="btn btn-info"><i class="icon-question-sign icon-white"></i> Update</button>
 </form>
 
-<script src="http://code.jquery.com/jquery-1.9.1.min.js"></script>
-<script src="http://localhost:4567/js/bootstrap.js"></script>
+<script src="${asset("app.js")}"></script>
 
 <script type="text/javascript">
 
@@ -4,10 +4,7 @@
 	<head>
 		<title>${title?html}</title>
 		
-		<link href="http://${ip}:${port?c}/css/bootstrap.css" rel="stylesheet">
-	    <link href="http://${ip}:${port?c}/css/bootstrap-responsive.css" rel="stylesheet">
-	    <link href="http://${ip}:${port?c}/css/docs.css" rel="stylesheet">
-	    <link href="http://${ip}:${port?c}/js/google-code-prettify/prettify.css" rel="stylesheet">
+		<link href="${asset("app.css")}" rel="stylesheet">
 	    <link href="http://${ip}:${port?c}/img/favicon.png" rel="shortcut icon" type="image/x-icon" >
 		<style>
 			body {
@@ -58,8 +55,7 @@
 	
 	
 	<!-- footer section -->
-	<script src="http://code.jquery.com/jquery-1.9.1.min.js"></script>
-	<script src="http://localhost:4567/js/bootstrap.js"></script>
+	<script src="${asset("app.js")}"></script>
 	</body>
 	
 	</html>
@@ -37,16 +37,45 @@
 	</div>
 </div>
 
-<script src="http://code.jquery.com/jquery-1.9.1.min.js"></script>
-<script src="http://localhost:4567/js/bootstrap.js"></script>
+<script src="${asset("app.js")}"></script>
 
 <script type="text/javascript">
 
+	var storyStates = {};
+	var userId = ${user.id};
+	var userNames = {<#list users as usr>${usr.id}: "${usr.name?js_string}"<#if usr_has_next>, </#if></#list>};
+	var symbols = {<#list estimations as estimation>${estimation.id}: "${estimation.complexitySymbol?js_string}"<#if estimation_has_next>, </#if></#list>};
+
+	// Shows the votes of the previous iteration, coloured by how many agreed,
+	// and who has voted in the current one
+	var renderVotes = function(storyId, state) {
+		var $estimations = $("#story-estimations-" + storyId).empty();
+		var colours = {};
+		for (var i = 0; i < state.tally.length; i++) {
+			colours[state.tally[i].estimate] = state.tally[i].colour;
+		}
+
+		for (var i = 0; i < state.votes.length; i++) {
+			var voter = state.votes[i][0];
+			var estimate = state.votes[i][1];
+			$("<span/>", { "id": "user-" + storyId + "-" + voter, "class": "label " + (colours[estimate] || "label-inverse"), "style": "font-size: 100%; padding:8px; text-align:center; vertical-align:middle;" })
+				.append($("<strong/>").text(symbols[estimate]))
+				.appendTo($estimations)
+				.tooltip({ title: userNames[voter], placement: 'top', animation: true, trigger:'hover', delay: {show:0, hide:5000} });
+		}
+
+		for (var i = 0; i < state.voters.length; i++) {
+			$('<button class="btn btn-info btn-small"><i class="icon-tasks"></i> </button>')
+				.append($("<strong/>").text(userNames[state.voters[i]]))
+				.appendTo($estimations);
+		}
+	};
+
 	<#list stories as story>
 		var img${story.id} = '${story.description}';
 
 		$("#story-${story.id}").popover({ title: 'Story Description', content: img${story.id}, placement: 'right', animation: true, trigger:'hover', delay: {show:333, hide:100} });
-		var timerId${story.id} = 0;
+		var done${story.id} = false;
 		var img${story.id} = '${story.description}';
 		var request${story.id};
 		
@@ -89,52 +118,104 @@
 			$form.find("button").prop("disabled", true);
 			$("#ready-${story.id}").prop("disabled", true);
 			
-			// fire off the request
-			$.post("/task/${task.id}/user/${user.id}/story/${story.id}/ready", {'estimate_id': $inputs.attr('value')})
-			.done(function(data) {
-				// We could read the response here instead of during the interval..?
-				console.log("from post: " + data);
-			});
-			 
+			// fire off the request, the key lets the server recognize a retry
+			var vote = {'estimate_id': $inputs.attr('value'), 'key': new Date().getTime().toString(36) + Math.random().toString(36).substr(2)};
+			var send = function(retries) {
+				request${story.id} = $.post("/task/${task.id}/user/${user.id}/story/${story.id}/ready", vote, null, "json")
+				.done(function(data) {
+					applyState${story.id}(data);
+				})
+				.fail(function(xhr, status) {
+					if (status !== "abort" && xhr.status !== 400 && retries > 0) {
+						send(retries - 1);
+					}
+				});
+			};
+			send(2);
 		});
 		
-		timerId${story.id} = setInterval(function() {
-			$.getJSON("/task/${task.id}/user/${user.id}/story/${story.id}", function(data) {
-				//console.log("from get: " + data);
-						
-				$("#story-estimations-${story.id}").html(data["data"]);
-				<#list users as usr>
-					$("#user-${story.id}-${usr.id}").tooltip({ title: '${usr.name}', placement: 'top', animation: true, trigger:'hover', delay: {show:0, hide:5000} });
-				</#list>
-				if (data["vote"] === "true") {
-					var $inputs = $("#storyform-${story.id}").find("button");
-					$inputs.prop("disabled", false);
-					
-				} else {
-					$("#storyform-${story.id}").find("button").prop("disabled", true);
-					$inputs.prop("disabled", false);
-				}
-				
-				if (data["consensus"] === "true") {
-					$("#storyform-${story.id}").parents("tr").hide();
-					$("#story-estimations-${story.id}").parents("tr").hide();					
-					clearInterval(timerId${story.id});
-					timerId${story.id} = -1;
-				}
-			});
-		}, 500);
-		
-		setInterval(function() {
-			
-				if (<#list stories as story> 
-						timerId${story.id} === -1 <#if story_has_next>&&</#if> 
-					</#list>) {
-					window.location.replace("http://localhost:4567/task/${task.id}/summary");
-				} 	
-			
+		var version${story.id} = 0;
+		var applyState${story.id} = function(state) {
+			// Nothing changed, or a poll answered before a vote must not undo it
+			if (state.version <= version${story.id}) {
+				return;
+			}
+			version${story.id} = state.version;
+			renderVotes(${story.id}, state);
+
+			$("#storyform-${story.id}").find("button").prop("disabled", $.inArray(userId, state.voters) >= 0);
 			
-		}, 333);
+			if (state.consensus) {
+				$("#storyform-${story.id}").parents("tr").hide();
+				$("#story-estimations-${story.id}").parents("tr").hide();
+				done${story.id} = true;
+				checkDone();
+			}
+		};
+		storyStates[${story.id}] = applyState${story.id};
+		
 	</#list>
+	
+	var polling = false;
+	var source;
+	
+	var checkDone = function() {
+		if (true<#list stories as story> && done${story.id}</#list>) {
+			polling = false;
+			if (source) {
+				source.close();
+			}
+			window.location.replace("http://localhost:4567/task/${task.id}/summary");
+		}
+	};
+	
+	// Fallback for browsers without Server-Sent Events: the server holds each
+	// request until a story moves past the last version seen, and answers
+	// 204 when none did for a while
+	var since = 0;
+	var poll = function() {
+		if (!polling) {
+			return;
+		}
+		$.ajax({ url: "/task/${task.id}/user/${user.id}/state", data: { "since": since }, dataType: "json", cache: false, timeout: 60000 })
+		.done(function(data, status, xhr) {
+			if (xhr.status === 200) {
+				for (var id in data) {
+					since = Math.max(since, data[id].version);
+					if (storyStates[id]) {
+						storyStates[id](data[id]);
+					}
+				}
+			}
+			poll();
+		})
+		.fail(function() {
+			setTimeout(poll, 1000);
+		});
+	};
+	var startPolling = function() {
+		if (!polling) {
+			polling = true;
+			poll();
+		}
+	};
+	
+	if (window.EventSource) {
+		source = new EventSource("/task/${task.id}/user/${user.id}/events");
+		source.addEventListener("story", function(event) {
+			var message = JSON.parse(event.data);
+			if (storyStates[message.story]) {
+				storyStates[message.story](message.state);
+			}
+		});
+		source.onerror = function() {
+			if (source.readyState === EventSource.CLOSED) {
+				startPolling();
+			}
+		};
+	} else {
+		startPolling();
+	}
 </script>
 
 </@c.page>
\ No newline at end of file
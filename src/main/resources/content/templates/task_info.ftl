@@ -33,6 +33,13 @@
 				<textarea  rows="5" name="task_description" placeholder="Enter task description here..." class="span4">${task.description}</textarea><br><br>
 				
 				<#if !edit>
+					<label>Deck</label>
+					<select name="deck" class="span4">
+						<#list decks as deck>
+							<option value="${deck.id}">${deck.name}</option>
+						</#list>
+					</select><br><br>
+
 					<button type="submit" class="btn btn-primary pull-right">Add Task</button>
 				<#else>
 					<div class="pull-right">
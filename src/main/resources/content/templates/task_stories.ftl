@@ -63,8 +63,7 @@
 	</div>
 </div>
 
-<script src="http://code.jquery.com/jquery-1.9.1.min.js"></script>
-<script src="http://localhost:4567/js/bootstrap.js"></script>
+<script src="${asset("app.js")}"></script>
 
 <script type="text/javascript">
 	<#list stories as story>
@@ -40,6 +40,14 @@
 			</#escape> 
 			</#list>
 		</table>
+		<ul class="pager">
+			<#if !first_page>
+				<li class="previous"><a href="/tasks">First page</a></li>
+			</#if>
+			<#if next_after != -1>
+				<li class="next"><a href="/tasks?after=${next_after?c}">Next page</a></li>
+			</#if>
+		</ul>
 			<form class="navbar-form pull-left" method="get" action="/task/new">
 				<p>
 					<button class="btn btn-large btn-primary" type="submit"><i class="icon-pencil icon-white"></i> New task</button>
@@ -48,8 +56,7 @@
 	</div>
 </div>
 
-<script src="http://code.jquery.com/jquery-1.9.1.min.js"></script>
-<script src="http://localhost:4567/js/bootstrap.js"></script>
+<script src="${asset("app.js")}"></script>
 <script type="text/javascript">
 	<#list tasks as task>
 		var img${task.id} = '${task.description}';